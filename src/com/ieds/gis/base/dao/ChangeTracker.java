@@ -0,0 +1,331 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.Transient;
+
+import com.lidroid.xutils.db.table.MyId;
+import com.lidroid.xutils.db.table.MyTable;
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 查询出的对象的快照，用于updateById时只更新修改过的列
+ * 
+ * 按对象身份(而不是equals)保存，对象不再被引用后快照自动释放；没有主键的对象不记录。
+ * 一行被写入后，同一行的其他对象的快照失效，避免用过期的快照漏掉其他写操作改过的列；
+ * 按条件批量修改时整张表的快照失效
+ * 
+ * @author lihx
+ * 
+ */
+public class ChangeTracker {
+
+	private static final char ROW_SEPARATOR = '\u0001';
+
+	private final Map<IdentityReference, Snapshot> snapshots = new HashMap<IdentityReference, Snapshot>();
+	/** 表名+主键与该行的对象 */
+	private final Map<String, List<IdentityReference>> rows = new HashMap<String, List<IdentityReference>>();
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	private final Map<Class<?>, Field[]> fieldCache = new HashMap<Class<?>, Field[]>();
+
+	public synchronized void snapshot(Object entity) throws DbException {
+		if (entity == null) {
+			return;
+		}
+		String row = getRow(entity);
+		if (row == null) {
+			return;
+		}
+		expunge();
+		IdentityReference ref = new IdentityReference(entity, queue);
+		Snapshot old = snapshots.remove(ref);
+		if (old != null) {
+			removeRow(old.row, ref);
+		}
+		put(ref, new Snapshot(row, getValues(entity,
+				getFields(entity.getClass()))));
+	}
+
+	public synchronized void snapshot(List<?> entities) throws DbException {
+		for (Object entity : entities) {
+			snapshot(entity);
+		}
+	}
+
+	/**
+	 * @param entity
+	 * @return 与快照相比修改过的列，没有快照时返回null
+	 * @throws DbException
+	 */
+	public synchronized List<String> getChangedColumns(Object entity)
+			throws DbException {
+		expunge();
+		Snapshot snapshot = snapshots.get(new IdentityReference(entity, null));
+		if (snapshot == null) {
+			return null;
+		}
+		Field[] fields = getFields(entity.getClass());
+		Object[] values = getValues(entity, fields);
+		List<String> changed = new ArrayList<String>();
+		for (int i = 0; i < fields.length; i++) {
+			if (!equals(snapshot.values[i], values[i])) {
+				changed.add(fields[i].getName());
+			}
+		}
+		return changed;
+	}
+
+	public synchronized void forget(Object entity) {
+		IdentityReference ref = new IdentityReference(entity, null);
+		Snapshot old = snapshots.remove(ref);
+		if (old != null) {
+			removeRow(old.row, ref);
+		}
+	}
+
+	/**
+	 * 一行被对象entity写入后调用，丢弃同一行其他对象的快照
+	 * 
+	 * @param entity
+	 * @param includeSelf
+	 *            为true时也丢弃entity自己的快照，如删除
+	 * @throws DbException
+	 */
+	public synchronized void forgetRow(Object entity, boolean includeSelf)
+			throws DbException {
+		String row = getRow(entity);
+		if (row == null) {
+			// 没有主键时不知道写了哪一行
+			forgetTable(MyTable.get(entity.getClass()).getTableName());
+			return;
+		}
+		expunge();
+		List<IdentityReference> refs = rows.get(row);
+		if (refs == null) {
+			return;
+		}
+		Iterator<IdentityReference> it = refs.iterator();
+		while (it.hasNext()) {
+			IdentityReference ref = it.next();
+			if (includeSelf || ref.get() != entity) {
+				snapshots.remove(ref);
+				it.remove();
+			}
+		}
+		if (refs.isEmpty()) {
+			rows.remove(row);
+		}
+	}
+
+	/**
+	 * 按条件写入表后调用，丢弃该表所有对象的快照
+	 * 
+	 * @param tableName
+	 */
+	public synchronized void forgetTable(String tableName) {
+		expunge();
+		String prefix = tableName + ROW_SEPARATOR;
+		Iterator<Map.Entry<String, List<IdentityReference>>> it = rows
+				.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, List<IdentityReference>> entry = it.next();
+			if (entry.getKey().startsWith(prefix)) {
+				for (IdentityReference ref : entry.getValue()) {
+					snapshots.remove(ref);
+				}
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * 写入时记录对象当前的值，事务提交后用restore生效，回滚时原来的快照仍然正确
+	 * 
+	 * @param entity
+	 * @return 对象没有快照时为null
+	 * @throws DbException
+	 */
+	public synchronized Pending capture(Object entity) throws DbException {
+		Snapshot current = snapshots.get(new IdentityReference(entity, null));
+		if (current == null) {
+			return null;
+		}
+		return new Pending(current, new Snapshot(current.row, getValues(entity,
+				getFields(entity.getClass()))));
+	}
+
+	/**
+	 * 快照在这期间没有被其他写操作丢弃或替换时才生效
+	 * 
+	 * @param entity
+	 * @param pending
+	 */
+	public synchronized void restore(Object entity, Pending pending) {
+		IdentityReference ref = new IdentityReference(entity, null);
+		if (snapshots.get(ref) == pending.previous) {
+			snapshots.remove(ref);
+			removeRow(pending.previous.row, ref);
+			put(new IdentityReference(entity, queue), pending.next);
+		}
+	}
+
+	private void put(IdentityReference ref, Snapshot snapshot) {
+		snapshots.put(ref, snapshot);
+		List<IdentityReference> refs = rows.get(snapshot.row);
+		if (refs == null) {
+			refs = new ArrayList<IdentityReference>(1);
+			rows.put(snapshot.row, refs);
+		}
+		refs.add(ref);
+	}
+
+	private void removeRow(String row, IdentityReference ref) {
+		List<IdentityReference> refs = rows.get(row);
+		if (refs != null) {
+			refs.remove(ref);
+			if (refs.isEmpty()) {
+				rows.remove(row);
+			}
+		}
+	}
+
+	/**
+	 * @return 表名+主键值，没有主键或主键为null时为null
+	 */
+	private static String getRow(Object entity) throws DbException {
+		MyTable table = MyTable.get(entity.getClass());
+		List<MyId> idList = table.getId();
+		if (idList == null || idList.isEmpty()) {
+			return null;
+		}
+		StringBuilder row = new StringBuilder(table.getTableName())
+				.append(ROW_SEPARATOR);
+		for (MyId id : idList) {
+			Object value = id.getColumnValue(entity);
+			if (value == null) {
+				return null;
+			}
+			row.append(TypeConverters.toDbValue(value)).append('\u0000');
+		}
+		return row.toString();
+	}
+
+	private static boolean equals(Object a, Object b) {
+		if (a == null) {
+			return b == null;
+		}
+		if (a instanceof byte[] && b instanceof byte[]) {
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		}
+		return a.equals(b);
+	}
+
+	private Field[] getFields(Class<?> entityType) {
+		Field[] fields = fieldCache.get(entityType);
+		if (fields == null) {
+			List<Field> list = new ArrayList<Field>();
+			for (Field f : entityType.getDeclaredFields()) {
+				if (Modifier.isStatic(f.getModifiers()) || f.isSynthetic()
+						|| f.getAnnotation(Transient.class) != null
+						|| f.getAnnotation(Relation.class) != null) {
+					continue;
+				}
+				f.setAccessible(true);
+				list.add(f);
+			}
+			fields = list.toArray(new Field[list.size()]);
+			fieldCache.put(entityType, fields);
+		}
+		return fields;
+	}
+
+	private static Object[] getValues(Object entity, Field[] fields)
+			throws DbException {
+		Object[] values = new Object[fields.length];
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				Object value = fields[i].get(entity);
+				// Date和byte[]是可变对象，保存副本
+				if (value instanceof Date) {
+					value = new Date(((Date) value).getTime());
+				} else if (value instanceof byte[]) {
+					value = ((byte[]) value).clone();
+				}
+				values[i] = value;
+			}
+		} catch (IllegalAccessException e) {
+			throw new DbException(e.getMessage());
+		}
+		return values;
+	}
+
+	private void expunge() {
+		Reference<?> ref;
+		while ((ref = queue.poll()) != null) {
+			Snapshot old = snapshots.remove(ref);
+			if (old != null) {
+				removeRow(old.row, (IdentityReference) ref);
+			}
+		}
+	}
+
+	private static class Snapshot {
+		final String row;
+		final Object[] values;
+
+		Snapshot(String row, Object[] values) {
+			this.row = row;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * 写入时记录、提交后生效的快照
+	 */
+	public static class Pending {
+		final Snapshot previous;
+		final Snapshot next;
+
+		Pending(Snapshot previous, Snapshot next) {
+			this.previous = previous;
+			this.next = next;
+		}
+	}
+
+	private static class IdentityReference extends WeakReference<Object> {
+		private final int hash;
+
+		IdentityReference(Object referent, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			this.hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof IdentityReference)) {
+				return false;
+			}
+			Object referent = get();
+			return referent != null && referent == ((IdentityReference) o).get();
+		}
+	}
+}
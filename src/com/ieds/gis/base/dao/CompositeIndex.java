@@ -0,0 +1,26 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 多列索引，列顺序即索引顺序，多个时用CompositeIndexes
+ * 
+ * @author lihx
+ * 
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CompositeIndex {
+
+	String[] columns();
+
+	/**
+	 * 索引名，默认为idx_表名_列名1_列名2
+	 */
+	String name() default "";
+
+	boolean unique() default false;
+}
@@ -0,0 +1,19 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 声明多个多列索引
+ * 
+ * @author lihx
+ * 
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CompositeIndexes {
+
+	CompositeIndex[] value();
+}
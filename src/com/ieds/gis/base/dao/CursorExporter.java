@@ -0,0 +1,232 @@
+package com.ieds.gis.base.dao;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.util.Base64;
+
+/**
+ * 将游标逐行写出为JSON或CSV，不把结果集加载到内存
+ *
+ * 按列下标读取数据，字符串通过复用的CharArrayBuffer拷贝，输出先写入复用的缓冲区再批量写到Writer，
+ * 因此内存占用与结果行数无关
+ *
+ * @author lihx
+ *
+ */
+public class CursorExporter {
+
+	public enum Format {
+		JSON, CSV
+	}
+
+	private static final int FLUSH_SIZE = 8192;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Writer writer;
+	private final Format format;
+	private final StringBuilder out = new StringBuilder(FLUSH_SIZE * 2);
+	private final CharArrayBuffer value = new CharArrayBuffer(128);
+	private char[] chunk = new char[FLUSH_SIZE * 2];
+
+	public CursorExporter(Writer writer, Format format) {
+		this.writer = writer;
+		this.format = format;
+	}
+
+	/**
+	 * 写出游标剩余的全部行，不关闭游标和Writer
+	 *
+	 * @param cursor
+	 * @return 写出的行数
+	 * @throws IOException
+	 */
+	public int write(Cursor cursor) throws IOException {
+		String[] names = cursor.getColumnNames();
+		int count = 0;
+		if (format == Format.JSON) {
+			out.append('[');
+			while (cursor.moveToNext()) {
+				if (count > 0) {
+					out.append(',');
+				}
+				writeJsonRow(cursor, names);
+				count++;
+				flushIfFull();
+			}
+			out.append(']');
+		} else {
+			writeCsvHeader(names);
+			while (cursor.moveToNext()) {
+				writeCsvRow(cursor, names.length);
+				count++;
+				flushIfFull();
+			}
+		}
+		flush();
+		return count;
+	}
+
+	private void writeJsonRow(Cursor cursor, String[] names) {
+		out.append('{');
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				out.append(',');
+			}
+			appendJsonString(names[i]);
+			out.append(':');
+			switch (cursor.getType(i)) {
+			case Cursor.FIELD_TYPE_NULL:
+				out.append("null");
+				break;
+			case Cursor.FIELD_TYPE_INTEGER:
+				out.append(cursor.getLong(i));
+				break;
+			case Cursor.FIELD_TYPE_FLOAT:
+				appendDouble(cursor.getDouble(i), "null");
+				break;
+			case Cursor.FIELD_TYPE_BLOB:
+				out.append('"')
+						.append(Base64.encodeToString(cursor.getBlob(i),
+								Base64.NO_WRAP)).append('"');
+				break;
+			default:
+				cursor.copyStringToBuffer(i, value);
+				appendJsonString(value.data, value.sizeCopied);
+				break;
+			}
+		}
+		out.append('}');
+	}
+
+	private void appendJsonString(String s) {
+		appendJsonString(s.toCharArray(), s.length());
+	}
+
+	private void appendJsonString(char[] data, int length) {
+		out.append('"');
+		for (int i = 0; i < length; i++) {
+			char c = data[i];
+			switch (c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+				} else {
+					out.append(c);
+				}
+				break;
+			}
+		}
+		out.append('"');
+	}
+
+	private void writeCsvHeader(String[] names) {
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				out.append(',');
+			}
+			char[] data = names[i].toCharArray();
+			appendCsvField(data, data.length);
+		}
+		out.append("\r\n");
+	}
+
+	/**
+	 * JSON没有NaN和Infinity，CSV读取端也大多不认，这些值按NULL输出
+	 */
+	private void appendDouble(double d, String nullValue) {
+		if (Double.isNaN(d) || Double.isInfinite(d)) {
+			out.append(nullValue);
+		} else {
+			out.append(d);
+		}
+	}
+
+	private void writeCsvRow(Cursor cursor, int columnCount) {
+		for (int i = 0; i < columnCount; i++) {
+			if (i > 0) {
+				out.append(',');
+			}
+			switch (cursor.getType(i)) {
+			case Cursor.FIELD_TYPE_NULL:
+				break;
+			case Cursor.FIELD_TYPE_INTEGER:
+				out.append(cursor.getLong(i));
+				break;
+			case Cursor.FIELD_TYPE_FLOAT:
+				appendDouble(cursor.getDouble(i), "");
+				break;
+			case Cursor.FIELD_TYPE_BLOB:
+				out.append(Base64.encodeToString(cursor.getBlob(i),
+						Base64.NO_WRAP));
+				break;
+			default:
+				cursor.copyStringToBuffer(i, value);
+				appendCsvField(value.data, value.sizeCopied);
+				break;
+			}
+		}
+		out.append("\r\n");
+	}
+
+	private void appendCsvField(char[] data, int length) {
+		boolean quote = false;
+		for (int i = 0; i < length && !quote; i++) {
+			char c = data[i];
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			out.append(data, 0, length);
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < length; i++) {
+			char c = data[i];
+			if (c == '"') {
+				out.append('"');
+			}
+			out.append(c);
+		}
+		out.append('"');
+	}
+
+	private void flushIfFull() throws IOException {
+		if (out.length() >= FLUSH_SIZE) {
+			drain();
+		}
+	}
+
+	private void flush() throws IOException {
+		drain();
+		writer.flush();
+	}
+
+	private void drain() throws IOException {
+		int length = out.length();
+		if (length > 0) {
+			if (chunk.length < length) {
+				chunk = new char[length];
+			}
+			out.getChars(0, length, chunk, 0);
+			writer.write(chunk, 0, length);
+			out.setLength(0);
+		}
+	}
+}
@@ -0,0 +1,437 @@
+package com.ieds.gis.base.dao;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.lidroid.xutils.db.sqlite.WhereBuilder;
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
+
+/**
+ * 在线备份，不关闭数据库，按rowid分段把数据拷贝到新文件
+ * 
+ * 每次只读取stepRows行并写入目标库，两步之间释放连接让其他读写继续执行。
+ * 因为不是在一个读事务中完成，备份不是某一时刻的一致快照：备份期间写入的数据可能部分包含在备份中，
+ * 不同表的拷贝时刻也不同。
+ * 没有指定表时拷贝全部表、索引、触发器和视图，指定表时只导出这些表中满足条件的行，
+ * 以及只涉及这些表的索引和触发器。
+ * 注册的全文检索表和汇总表由原表派生，不拷贝行，而是在原表拷贝完后在目标库中按原表重建，
+ * 与目标库中的原表数据一致。
+ * 先写入临时文件，完成后再改名为目标文件
+ * 
+ * @author lihx
+ * 
+ */
+public class DbBackup {
+
+	public interface ProgressListener {
+
+		/**
+		 * 每拷贝一段后在备份线程回调
+		 * 
+		 * @param tableName
+		 * @param copied
+		 *            当前表已拷贝的行数
+		 * @param total
+		 *            当前表需要拷贝的行数
+		 */
+		public void onProgress(String tableName, long copied, long total);
+	}
+
+	public static final int DEFAULT_STEP_ROWS = 500;
+	public static final long DEFAULT_YIELD_MS = 10;
+
+	private final DbUtils db;
+	private final File target;
+	/** 表名与条件，条件为null时导出整表 */
+	private final Map<String, String> tables = new LinkedHashMap<String, String>();
+	private int stepRows = DEFAULT_STEP_ROWS;
+	private long yieldMs = DEFAULT_YIELD_MS;
+
+	DbBackup(DbUtils db, File target) {
+		this.db = db;
+		this.target = target;
+	}
+
+	/**
+	 * 只导出指定的表，全文索引表随原表导出
+	 * 
+	 * @param entityType
+	 * @param whereBuilder
+	 *            为null时导出整表
+	 * @return
+	 * @throws DbException
+	 */
+	public DbBackup table(Class<?> entityType, WhereBuilder whereBuilder)
+			throws DbException {
+		return table(EntitySchema.getTableName(entityType), whereBuilder);
+	}
+
+	public DbBackup table(String tableName, WhereBuilder whereBuilder) {
+		String where = whereBuilder == null ? null : whereBuilder.toString();
+		tables.put(tableName, TextUtils.isEmpty(where) ? null : where);
+		return this;
+	}
+
+	/**
+	 * @param stepRows
+	 *            每步拷贝的行数
+	 * @param yieldMs
+	 *            两步之间暂停的时间
+	 * @return
+	 */
+	public DbBackup step(int stepRows, long yieldMs) {
+		this.stepRows = stepRows;
+		this.yieldMs = yieldMs;
+		return this;
+	}
+
+	/**
+	 * 执行备份，在后台线程调用，线程被中断时停止并删除临时文件
+	 * 
+	 * @param listener
+	 *            可以为null
+	 * @throws DbException
+	 */
+	public void copyTo(ProgressListener listener) throws DbException {
+		File temp = new File(target.getPath() + ".tmp");
+		deleteFiles(temp);
+		SQLiteDatabase out = null;
+		boolean success = false;
+		try {
+			// 不自动创建android_metadata，auto_vacuum需要在建表前设置
+			out = SQLiteDatabase.openDatabase(temp.getPath(), null,
+					SQLiteDatabase.CREATE_IF_NECESSARY
+							| SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			copy(out, listener);
+			out.close();
+			out = null;
+			deleteFiles(target);
+			if (!temp.renameTo(target)) {
+				throw new DbException("备份文件改名失败：" + target);
+			}
+			success = true;
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+			if (!success) {
+				deleteFiles(temp);
+			}
+		}
+	}
+
+	private void copy(SQLiteDatabase out, ProgressListener listener)
+			throws DbException {
+		List<String[]> schema = readSchema();
+		// 虚拟表的内部表由CREATE VIRTUAL TABLE自动创建
+		List<String> virtualTables = new ArrayList<String>();
+		for (String[] item : schema) {
+			if ("table".equals(item[0])
+					&& item[3].toUpperCase().startsWith("CREATE VIRTUAL TABLE")) {
+				virtualTables.add(item[1]);
+			}
+		}
+		Map<String, String> copyTables = new LinkedHashMap<String, String>();
+		List<String> deferred = new ArrayList<String>();
+		Set<String> derived = getDerivedTables();
+		out.execSQL("PRAGMA auto_vacuum = " + db.pragma("auto_vacuum"));
+		for (String[] item : schema) {
+			String type = item[0];
+			String name = item[1];
+			String tableName = item[2];
+			if (isShadowTable(name, virtualTables)
+					|| derived.contains(tableName)) {
+				continue;
+			}
+			String owner = getOwnerTable(tableName, virtualTables);
+			if (!tables.isEmpty() && !tables.containsKey(owner)) {
+				continue;
+			}
+			if ("table".equals(type)) {
+				out.execSQL(item[3]);
+				copyTables.put(name, getWhere(name, owner));
+			} else {
+				// 索引和触发器在数据拷贝完后创建
+				deferred.add(item[3]);
+			}
+		}
+		for (Map.Entry<String, String> entry : copyTables.entrySet()) {
+			copyTable(out, entry.getKey(), entry.getValue(), listener);
+		}
+		rebuildDerived(out, copyTables);
+		for (String sql : deferred) {
+			// 只导出部分表时，写入未导出的表的触发器不能保留，否则目标库写入原表时出错
+			String missing = getMissingTable(sql, schema, copyTables);
+			if (missing != null) {
+				// 派生表的触发器已随重建创建
+				if (!derived.contains(missing)) {
+					LogUtils.w("skip " + sql + ": " + missing + "未导出");
+				}
+				continue;
+			}
+			out.execSQL(sql);
+		}
+		out.setVersion(db.getDatabase().getVersion());
+	}
+
+	/**
+	 * @return 注册的po类的全文检索表和汇总表
+	 */
+	private Set<String> getDerivedTables() throws DbException {
+		Set<String> derived = new HashSet<String>();
+		SchemaMigrator migrator = db.getMigrator();
+		for (Class<?> entityType : migrator.getEntities()) {
+			if (!FullTextSchema.getColumns(entityType).isEmpty()) {
+				derived.add(FullTextSchema.getFtsTableName(EntitySchema
+						.getTableName(entityType)));
+			}
+		}
+		for (SummaryTable summary : migrator.getSummaries()) {
+			derived.add(summary.getName());
+		}
+		return derived;
+	}
+
+	/**
+	 * 按目标库中拷贝好的原表重建全文检索表和汇总表，原表没有导出时跳过
+	 */
+	private void rebuildDerived(SQLiteDatabase out,
+			Map<String, String> copyTables) throws DbException {
+		SchemaMigrator migrator = db.getMigrator();
+		for (Class<?> entityType : migrator.getEntities()) {
+			if (!FullTextSchema.getColumns(entityType).isEmpty()
+					&& copyTables.containsKey(EntitySchema
+							.getTableName(entityType))) {
+				FullTextSchema.rebuild(out, entityType);
+			}
+		}
+		for (SummaryTable summary : migrator.getSummaries()) {
+			if (copyTables.containsKey(EntitySchema.getTableName(summary
+					.getEntityType()))) {
+				summary.rebuild(out);
+			}
+		}
+	}
+
+	/**
+	 * @return type, name, tbl_name, sql，表在前
+	 */
+	private List<String[]> readSchema() throws DbException {
+		List<String[]> schema = new ArrayList<String[]>();
+		Cursor cursor = db.execQuery("SELECT type, name, tbl_name, sql"
+				+ " FROM sqlite_master WHERE sql NOT NULL"
+				+ " AND name NOT LIKE 'sqlite_%'"
+				+ " ORDER BY CASE type WHEN 'table' THEN 0 ELSE 1 END");
+		try {
+			while (cursor.moveToNext()) {
+				schema.add(new String[] { cursor.getString(0),
+						cursor.getString(1), cursor.getString(2),
+						cursor.getString(3) });
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		return schema;
+	}
+
+	/**
+	 * @return 触发器中引用的、没有导出的表，没有时为null
+	 */
+	private static String getMissingTable(String sql, List<String[]> schema,
+			Map<String, String> copyTables) {
+		if (!sql.toUpperCase().startsWith("CREATE TRIGGER")) {
+			return null;
+		}
+		for (String[] item : schema) {
+			String name = item[1];
+			if ("table".equals(item[0]) && !copyTables.containsKey(name)
+					&& Pattern.compile("\\b" + Pattern.quote(name) + "\\b",
+							Pattern.CASE_INSENSITIVE).matcher(sql).find()) {
+				return name;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isShadowTable(String name, List<String> virtualTables) {
+		for (String virtualTable : virtualTables) {
+			if (name.startsWith(virtualTable + "_")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 全文索引表"表名_fts"归属原表，随原表一起导出
+	 */
+	private static String getOwnerTable(String tableName,
+			List<String> virtualTables) {
+		if (virtualTables.contains(tableName)
+				&& tableName.endsWith(FullTextSchema.SUFFIX)) {
+			return tableName.substring(0, tableName.length()
+					- FullTextSchema.SUFFIX.length());
+		}
+		return tableName;
+	}
+
+	private String getWhere(String tableName, String owner) {
+		String where = tables.get(owner);
+		if (where == null || tableName.equals(owner)) {
+			return where;
+		}
+		return "rowid IN (SELECT rowid FROM " + owner + " WHERE " + where
+				+ ")";
+	}
+
+	private void copyTable(SQLiteDatabase out, String tableName, String where,
+			ProgressListener listener) throws DbException {
+		String condition = where == null ? "" : " AND (" + where + ")";
+		long total = count(tableName, where);
+		// INTEGER PRIMARY KEY是rowid的别名，不需要单独拷贝rowid
+		boolean rowidAlias = isRowidAlias(tableName);
+		SQLiteStatement insert = null;
+		long copied = 0;
+		long lastRowid = Long.MIN_VALUE;
+		try {
+			while (true) {
+				Cursor cursor = db.execQuery("SELECT rowid, * FROM "
+						+ tableName + " WHERE rowid > " + lastRowid
+						+ condition + " ORDER BY rowid LIMIT " + stepRows);
+				int rows = 0;
+				try {
+					if (insert == null) {
+						insert = out.compileStatement(getInsertSql(tableName,
+								cursor.getColumnNames(), rowidAlias));
+					}
+					int first = rowidAlias ? 1 : 0;
+					int columnCount = cursor.getColumnCount();
+					out.beginTransaction();
+					try {
+						while (cursor.moveToNext()) {
+							for (int i = first; i < columnCount; i++) {
+								bind(insert, i - first + 1, cursor, i);
+							}
+							insert.executeInsert();
+							lastRowid = cursor.getLong(0);
+							rows++;
+						}
+						out.setTransactionSuccessful();
+					} finally {
+						out.endTransaction();
+					}
+				} finally {
+					IOUtils.closeQuietly(cursor);
+				}
+				copied += rows;
+				if (listener != null) {
+					listener.onProgress(tableName, copied, Math.max(total,
+							copied));
+				}
+				if (rows < stepRows) {
+					break;
+				}
+				pause();
+			}
+		} finally {
+			if (insert != null) {
+				insert.close();
+			}
+		}
+		LogUtils.d("backup " + tableName + " " + copied + " rows");
+	}
+
+	private long count(String tableName, String where) throws DbException {
+		List<List<String>> result = db.execListQuery("SELECT count(*) FROM "
+				+ tableName + (where == null ? "" : " WHERE " + where));
+		return result.isEmpty() ? 0 : Long.parseLong(result.get(0).get(0));
+	}
+
+	private boolean isRowidAlias(String tableName) throws DbException {
+		Map<String, String> types = SchemaMigrator.getColumnTypes(
+				db.getDatabase(), tableName);
+		Map<String, Integer> info = SchemaMigrator.getTableInfo(
+				db.getDatabase(), tableName);
+		String pk = null;
+		for (Map.Entry<String, Integer> entry : info.entrySet()) {
+			if (entry.getValue() > 0) {
+				if (pk != null) {
+					return false;
+				}
+				pk = entry.getKey();
+			}
+		}
+		return pk != null && "INTEGER".equalsIgnoreCase(types.get(pk));
+	}
+
+	private static String getInsertSql(String tableName, String[] names,
+			boolean rowidAlias) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(
+				tableName).append(" (");
+		StringBuilder values = new StringBuilder();
+		int first = rowidAlias ? 1 : 0;
+		for (int i = first; i < names.length; i++) {
+			if (i > first) {
+				sql.append(",");
+				values.append(",");
+			}
+			sql.append(i == 0 ? "rowid" : names[i]);
+			values.append("?");
+		}
+		return sql.append(") VALUES (").append(values).append(")").toString();
+	}
+
+	private static void bind(SQLiteStatement statement, int index,
+			Cursor cursor, int column) {
+		switch (cursor.getType(column)) {
+		case Cursor.FIELD_TYPE_NULL:
+			statement.bindNull(index);
+			break;
+		case Cursor.FIELD_TYPE_INTEGER:
+			statement.bindLong(index, cursor.getLong(column));
+			break;
+		case Cursor.FIELD_TYPE_FLOAT:
+			statement.bindDouble(index, cursor.getDouble(column));
+			break;
+		case Cursor.FIELD_TYPE_BLOB:
+			statement.bindBlob(index, cursor.getBlob(column));
+			break;
+		default:
+			statement.bindString(index, cursor.getString(column));
+			break;
+		}
+	}
+
+	private void pause() throws DbException {
+		try {
+			if (yieldMs > 0) {
+				Thread.sleep(yieldMs);
+			} else if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException("备份已取消");
+		}
+	}
+
+	private static void deleteFiles(File file) {
+		file.delete();
+		new File(file.getPath() + "-journal").delete();
+		new File(file.getPath() + "-wal").delete();
+		new File(file.getPath() + "-shm").delete();
+	}
+}
@@ -0,0 +1,22 @@
+package com.ieds.gis.base.dao;
+
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 异步数据库操作的结果回调，全部在主线程执行
+ * 
+ * @author lihx
+ * 
+ */
+public abstract class DbCallback<T> {
+
+	public abstract void onSuccess(T result);
+
+	public abstract void onFailure(DbException e);
+
+	/**
+	 * 任务被取消时调用，取消后不会再调用onSuccess和onFailure
+	 */
+	public void onCancelled() {
+	}
+}
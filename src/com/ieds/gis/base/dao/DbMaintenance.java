@@ -0,0 +1,177 @@
+package com.ieds.gis.base.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
+
+/**
+ * 统计每张表修改的行数，超过阈值后在后台对这些表执行ANALYZE更新查询计划的统计信息，
+ * 空闲页超过上限时执行incremental_vacuum
+ * 
+ * 超过阈值后等待DELAY_MS再执行，期间的修改合并到同一次维护，避免批量导入过程中反复分析
+ * 
+ * @author lihx
+ * 
+ */
+public class DbMaintenance implements TableChangeListener {
+
+	public static final long DELAY_MS = 5000;
+	/** ANALYZE每个索引最多扫描的行数，sqlite 3.32以上有效 */
+	public static final int ANALYSIS_LIMIT = 1000;
+
+	private final DbUtils db;
+	private final int rowThreshold;
+	private final int freePageLimit;
+	private final ScheduledExecutorService scheduler;
+	private final Map<String, Integer> changedRows = new HashMap<String, Integer>();
+	private boolean pending = false;
+
+	private volatile long lastRunTime;
+	private volatile long lastDuration;
+	private volatile List<String> lastTables = Collections.emptyList();
+	private volatile int lastVacuumPages;
+
+	DbMaintenance(DbUtils db, int rowThreshold, int freePageLimit,
+			ScheduledExecutorService scheduler) {
+		this.db = db;
+		this.rowThreshold = rowThreshold;
+		this.freePageLimit = freePageLimit;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public void onTableChanged(String tableName, int rows) {
+		// 汇总表随原表通知，行数很少，不计入ANALYZE的修改行数
+		if (tableName.startsWith("sqlite_") || tableName.endsWith("_fts")
+				|| db.getMigrator().getSummary(tableName) != null) {
+			return;
+		}
+		synchronized (changedRows) {
+			Integer count = changedRows.get(tableName);
+			int total = (count == null ? 0 : count) + (rows < 0 ? 1 : rows);
+			changedRows.put(tableName, total);
+			if (total >= rowThreshold && !pending) {
+				pending = true;
+				scheduler.schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						synchronized (changedRows) {
+							pending = false;
+						}
+						db.submit(new DbTask<Void>() {
+
+							@Override
+							public Void run(CancellationSignal signal)
+									throws DbException {
+								runMaintenance(false);
+								return null;
+							}
+						}, QueryTask.PRIORITY_LOW, null);
+					}
+				}, DELAY_MS, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * 立即执行维护
+	 * 
+	 * @param all
+	 *            为true时分析所有修改过的表，否则只分析修改行数超过阈值的表
+	 * @throws DbException
+	 */
+	public synchronized void runMaintenance(boolean all) throws DbException {
+		List<String> tables = new ArrayList<String>();
+		synchronized (changedRows) {
+			Iterator<Map.Entry<String, Integer>> it = changedRows.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Integer> entry = it.next();
+				if (all || entry.getValue() >= rowThreshold) {
+					tables.add(entry.getKey());
+					it.remove();
+				}
+			}
+		}
+		long start = System.currentTimeMillis();
+		if (!tables.isEmpty() && db.isSqliteVersionAtLeast(3, 32, 0)) {
+			db.pragma("analysis_limit = " + ANALYSIS_LIMIT);
+		}
+		for (String table : tables) {
+			db.execNonQuery("ANALYZE " + table);
+		}
+		int vacuumPages = 0;
+		if ("2".equals(db.pragma("auto_vacuum"))) {
+			int free = Integer.parseInt(db.pragma("freelist_count"));
+			if (free > freePageLimit) {
+				// incremental_vacuum每一步释放一页，需要把游标读到最后
+				Cursor cursor = db.execQuery("PRAGMA incremental_vacuum("
+						+ free + ")");
+				try {
+					cursor.getCount();
+				} finally {
+					IOUtils.closeQuietly(cursor);
+				}
+				vacuumPages = free;
+			}
+		}
+		lastDuration = System.currentTimeMillis() - start;
+		lastRunTime = start;
+		lastTables = Collections.unmodifiableList(tables);
+		lastVacuumPages = vacuumPages;
+		LogUtils.d("maintenance analyze " + tables + ", vacuum " + vacuumPages
+				+ " pages, " + lastDuration + "ms");
+	}
+
+	/**
+	 * @param tableName
+	 * @return 上次维护后修改的行数
+	 */
+	public int getChangedRows(String tableName) {
+		synchronized (changedRows) {
+			Integer count = changedRows.get(tableName);
+			return count == null ? 0 : count;
+		}
+	}
+
+	/**
+	 * @return 上次维护开始的时间，没有执行过时为0
+	 */
+	public long getLastRunTime() {
+		return lastRunTime;
+	}
+
+	/**
+	 * @return 上次维护的耗时，毫秒
+	 */
+	public long getLastDuration() {
+		return lastDuration;
+	}
+
+	/**
+	 * @return 上次维护分析的表
+	 */
+	public List<String> getLastTables() {
+		return lastTables;
+	}
+
+	/**
+	 * @return 上次维护释放的空闲页数
+	 */
+	public int getLastVacuumPages() {
+		return lastVacuumPages;
+	}
+}
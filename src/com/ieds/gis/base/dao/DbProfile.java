@@ -0,0 +1,135 @@
+package com.ieds.gis.base.dao;
+
+/**
+ * 数据库连接参数，对应SQLite的PRAGMA，值为null的项不修改
+ * 
+ * 可以在大量导入等操作前后通过DbUtils.applyProfile切换，用DbUtils.readProfile保存当前值以便恢复
+ * 
+ * 除journal_mode外都是连接级的参数。applyProfile用编译的语句设置，Android在主连接上执行
+ * (写操作和事务内的查询也在主连接上)，并且在切换journal_mode之后设置，因为切换WAL会重新打开主连接。
+ * 启用WAL后Android为事务外的只读查询另开连接，这些连接保持系统默认值，
+ * 因此mmap_size、cache_size等对这部分读取不生效；Android没有提供配置池中连接的接口。
+ * readProfile同样读取主连接上的值
+ * 
+ * @author lihx
+ * 
+ */
+public class DbProfile {
+
+	public static final String SYNCHRONOUS_OFF = "OFF";
+	public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+	public static final String SYNCHRONOUS_FULL = "FULL";
+
+	public static final String JOURNAL_DELETE = "DELETE";
+	public static final String JOURNAL_TRUNCATE = "TRUNCATE";
+	public static final String JOURNAL_MEMORY = "MEMORY";
+	public static final String JOURNAL_WAL = "WAL";
+
+	public static final String TEMP_STORE_DEFAULT = "DEFAULT";
+	public static final String TEMP_STORE_FILE = "FILE";
+	public static final String TEMP_STORE_MEMORY = "MEMORY";
+
+	private Long mmapSize;
+	private Integer cacheSize;
+	private String tempStore;
+	private String synchronous;
+	private String journalMode;
+
+	/**
+	 * 大量导入：大缓存，临时表在内存，不等待fsync
+	 */
+	public static DbProfile bulkImport() {
+		return new DbProfile().setCacheSize(-16 * 1024)
+				.setTempStore(TEMP_STORE_MEMORY)
+				.setSynchronous(SYNCHRONOUS_OFF)
+				.setJournalMode(JOURNAL_TRUNCATE);
+	}
+
+	/**
+	 * 界面交互：mmap读取，适中的缓存，WAL下读写不互相阻塞
+	 */
+	public static DbProfile interactive() {
+		return new DbProfile().setMmapSize(64L * 1024 * 1024)
+				.setCacheSize(-4 * 1024).setTempStore(TEMP_STORE_MEMORY)
+				.setSynchronous(SYNCHRONOUS_NORMAL)
+				.setJournalMode(JOURNAL_WAL);
+	}
+
+	/**
+	 * 低内存：关闭mmap，小缓存，临时表写文件
+	 */
+	public static DbProfile lowMemory() {
+		return new DbProfile().setMmapSize(0L).setCacheSize(-512)
+				.setTempStore(TEMP_STORE_FILE)
+				.setSynchronous(SYNCHRONOUS_NORMAL)
+				.setJournalMode(JOURNAL_DELETE);
+	}
+
+	public Long getMmapSize() {
+		return mmapSize;
+	}
+
+	/**
+	 * @param mmapSize
+	 *            字节数，0为关闭，需要SQLite 3.7.17以上，旧版本忽略
+	 * @return
+	 */
+	public DbProfile setMmapSize(Long mmapSize) {
+		this.mmapSize = mmapSize;
+		return this;
+	}
+
+	public Integer getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * @param cacheSize
+	 *            正数为页数，负数为KB
+	 * @return
+	 */
+	public DbProfile setCacheSize(Integer cacheSize) {
+		this.cacheSize = cacheSize;
+		return this;
+	}
+
+	public String getTempStore() {
+		return tempStore;
+	}
+
+	public DbProfile setTempStore(String tempStore) {
+		this.tempStore = tempStore;
+		return this;
+	}
+
+	public String getSynchronous() {
+		return synchronous;
+	}
+
+	public DbProfile setSynchronous(String synchronous) {
+		this.synchronous = synchronous;
+		return this;
+	}
+
+	public String getJournalMode() {
+		return journalMode;
+	}
+
+	/**
+	 * @param journalMode
+	 *            不能在事务中修改
+	 * @return
+	 */
+	public DbProfile setJournalMode(String journalMode) {
+		this.journalMode = journalMode;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "mmap_size=" + mmapSize + ",cache_size=" + cacheSize
+				+ ",temp_store=" + tempStore
+				+ ",synchronous=" + synchronous + ",journal_mode="
+				+ journalMode;
+	}
+}
@@ -0,0 +1,22 @@
+package com.ieds.gis.base.dao;
+
+import android.os.CancellationSignal;
+
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 在后台线程执行的数据库操作
+ * 
+ * @author lihx
+ * 
+ */
+public interface DbTask<T> {
+
+	/**
+	 * @param signal
+	 *            取消信号，系统版本低于API 16时为null
+	 * @return
+	 * @throws DbException
+	 */
+	public T run(CancellationSignal signal) throws DbException;
+}
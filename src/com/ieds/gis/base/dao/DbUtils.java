@@ -15,15 +15,37 @@
 
 package com.ieds.gis.base.dao;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.zip.GZIPOutputStream;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.lidroid.xutils.db.sqlite.CursorUtils;
 import com.lidroid.xutils.db.sqlite.SqlInfo;
@@ -53,23 +75,69 @@ public abstract class DbUtils implements IDbUtils {
 	 */
 	private static final int DATABASE_INIT = 0;
 	public static final String NOT_WHERE = "参数没有定义";
-	private SQLiteDatabase database;
+	public static final String QUERY_CANCELED = "查询已取消";
+	private static final String[] TEMP_STORE_NAMES = {
+			DbProfile.TEMP_STORE_DEFAULT, DbProfile.TEMP_STORE_FILE,
+			DbProfile.TEMP_STORE_MEMORY };
+	private static final String[] SYNCHRONOUS_NAMES = {
+			DbProfile.SYNCHRONOUS_OFF, DbProfile.SYNCHRONOUS_NORMAL,
+			DbProfile.SYNCHRONOUS_FULL, "EXTRA" };
+	private volatile SQLiteDatabase database;
+	private final File dbFile;
+	private final int newVersion;
+	private final CountDownLatch ready = new CountDownLatch(1);
+	private boolean opening = false;
+	private volatile DbException openError;
 	private boolean debug = false;
 	private boolean allowTransaction = false;
+	private QueryExecutor queryExecutor;
+	private WriteQueue writeQueue;
+	private SchemaMigrator migrator;
+	private QueryPlanChecker queryPlanChecker;
+	private Boolean nativeUpsert;
+	private String sqliteVersion;
+	private final ChangeTracker changeTracker = new ChangeTracker();
+	private final Map<String, Long> tableVersions = new HashMap<String, Long>();
+	private final List<TableChangeListener> tableChangeListeners = new CopyOnWriteArrayList<TableChangeListener>();
+	private final ThreadLocal<PendingChanges> pendingChanges = new ThreadLocal<PendingChanges>();
+	private final Map<Class<?>, TableSnapshot> tableSnapshots = new HashMap<Class<?>, TableSnapshot>();
+	private ScheduledExecutorService observeScheduler;
+	private ExecutorService observeCallbackExecutor;
+	private DbMaintenance maintenance;
+	/** 原表名与由它的触发器维护的汇总表名 */
+	private Map<String, List<String>> summaryNames;
 
 	public DbUtils(File dbFile, int mNewVersion) {
+		this(dbFile, mNewVersion, false);
+	}
+
+	/**
+	 * @param dbFile
+	 * @param mNewVersion
+	 * @param lazy
+	 *            为true时构造函数不打开数据库，由openAsync在后台打开，或在第一次使用时打开
+	 */
+	public DbUtils(File dbFile, int mNewVersion, boolean lazy) {
 		if (mNewVersion < 1)
 			throw new IllegalArgumentException("Version must be >= 1, was "
 					+ mNewVersion);
+		this.dbFile = dbFile;
+		this.newVersion = mNewVersion;
 		// 允许交易
 		this.configAllowTransaction(true);
 		// 允许打印日志
 		this.configDebug(true);
-		this.database = getSQLiteDatabase(dbFile, mNewVersion);
+		if (!lazy) {
+			this.opening = true;
+			this.database = getSQLiteDatabase(dbFile, mNewVersion);
+			this.ready.countDown();
+		}
 	}
 
 	public SQLiteDatabase getSQLiteDatabase(File dbFile, int mNewVersion) {
 		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+		// INSERT OR REPLACE删除旧行时触发DELETE触发器，全文检索表和汇总表依赖它保持一致
+		db.execSQL("PRAGMA recursive_triggers = ON");
 
 		final int version = db.getVersion();
 		if (version != mNewVersion) {
@@ -80,10 +148,17 @@ public abstract class DbUtils implements IDbUtils {
 								+ dbFile.getName());
 			}
 
+			if (version == DATABASE_INIT) {
+				// 打开时已经建了android_metadata，auto_vacuum要VACUUM后才生效；
+				// 新库还没有建表，VACUUM很快且不涉及rowid，之后由DbMaintenance按需释放空闲页
+				db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+				db.execSQL("VACUUM");
+			}
 			db.beginTransaction();
 			try {
 				if (version == DATABASE_INIT) {
 					onCreate(db);
+					getMigrator().createSchema(db);
 				} else {
 					if (version > mNewVersion) {
 						onDowngrade(db, version, mNewVersion);
@@ -93,6 +168,8 @@ public abstract class DbUtils implements IDbUtils {
 				}
 				db.setVersion(mNewVersion);
 				db.setTransactionSuccessful();
+			} catch (DbException e) {
+				throw new SQLiteException(e.getMessage());
 			} finally {
 				db.endTransaction();
 			}
@@ -103,8 +180,36 @@ public abstract class DbUtils implements IDbUtils {
 
 	public abstract void onCreate(SQLiteDatabase db);
 
-	public abstract void onUpgrade(SQLiteDatabase db, int oldVersion,
-			int newVersion);
+	/**
+	 * 默认按getMigrator()中注册的升级步骤和po类增量升级
+	 * 
+	 * @param db
+	 * @param oldVersion
+	 * @param newVersion
+	 */
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		try {
+			getMigrator().migrate(db, oldVersion, newVersion);
+		} catch (DbException e) {
+			throw new SQLiteException(e.getMessage());
+		}
+	}
+
+	/**
+	 * 注册升级步骤和需要同步表结构的po类，在构造函数中第一次升级前调用
+	 * 
+	 * @param migrator
+	 */
+	protected void onConfigureMigrations(SchemaMigrator migrator) {
+	}
+
+	public synchronized SchemaMigrator getMigrator() {
+		if (migrator == null) {
+			migrator = new SchemaMigrator();
+			onConfigureMigrations(migrator);
+		}
+		return migrator;
+	}
 
 	public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 		throw new SQLiteException("Can't downgrade database from version "
@@ -116,24 +221,212 @@ public abstract class DbUtils implements IDbUtils {
 		return this;
 	}
 
+	/**
+	 * 开发模式下打开，带条件的查询第一次执行时检查查询计划，全表扫描时打印警告
+	 * 
+	 * @param check
+	 * @return
+	 */
+	public DbUtils configQueryPlanCheck(boolean check) {
+		this.queryPlanChecker = check ? new QueryPlanChecker() : null;
+		return this;
+	}
+
+	/**
+	 * 打开后统计每张表修改的行数，超过阈值时在后台执行ANALYZE，空闲页超过上限时执行incremental_vacuum
+	 * 
+	 * @param rowThreshold
+	 *            小于等于0时关闭
+	 * @param freePageLimit
+	 *            只对auto_vacuum为INCREMENTAL的数据库有效，新建的数据库默认为INCREMENTAL；
+	 *            已有的数据库保持原来的设置，不在打开时做整库VACUUM
+	 * @return
+	 */
+	public synchronized DbUtils configAutoMaintenance(int rowThreshold,
+			int freePageLimit) {
+		if (maintenance != null) {
+			removeTableChangeListener(maintenance);
+			maintenance = null;
+		}
+		if (rowThreshold > 0) {
+			maintenance = new DbMaintenance(this, rowThreshold, freePageLimit,
+					getObserveScheduler());
+			addTableChangeListener(maintenance);
+		}
+		return this;
+	}
+
+	/**
+	 * @return 没有调用configAutoMaintenance时为null
+	 */
+	public synchronized DbMaintenance getMaintenance() {
+		return maintenance;
+	}
+
 	public DbUtils configAllowTransaction(boolean allowTransaction) {
 		this.allowTransaction = allowTransaction;
 		return this;
 	}
 
+	/**
+	 * 延迟打开时等待数据库打开和升级完成
+	 * 
+	 * @return
+	 */
 	public SQLiteDatabase getDatabase() {
+		if (database == null) {
+			try {
+				awaitReady();
+			} catch (DbException e) {
+				throw new SQLiteException(e.getMessage());
+			}
+		}
 		return database;
 	}
 
+	/**
+	 * 后台打开数据库，执行升级并预热表结构和语句缓存，完成后在主线程回调
+	 * 
+	 * 打开完成前调用的数据库操作会等待打开完成
+	 * 
+	 * @param listener
+	 *            升级进度，可以为null
+	 * @param callback
+	 *            可以为null
+	 */
+	public synchronized void openAsync(MigrationListener listener,
+			final DbCallback<DbUtils> callback) {
+		final boolean open = !opening;
+		if (!open && callback == null) {
+			return;
+		}
+		opening = true;
+		if (open && listener != null) {
+			getMigrator().setListener(listener);
+		}
+		final Handler handler = new Handler(Looper.getMainLooper());
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				if (open) {
+					try {
+						database = getSQLiteDatabase(dbFile, newVersion);
+						warmUp();
+					} catch (Exception e) {
+						e.printStackTrace();
+						openError = QueryTask.toDbException(e);
+					} finally {
+						ready.countDown();
+					}
+				}
+				if (callback == null) {
+					return;
+				}
+				try {
+					awaitReady();
+				} catch (final DbException e) {
+					handler.post(new Runnable() {
+
+						@Override
+						public void run() {
+							callback.onFailure(e);
+						}
+					});
+					return;
+				}
+				handler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						callback.onSuccess(DbUtils.this);
+					}
+				});
+			}
+		}, "DbOpen").start();
+	}
+
+	/**
+	 * 等待数据库打开完成，延迟打开且未调用openAsync时在当前线程打开
+	 * 
+	 * @throws DbException
+	 */
+	public void awaitReady() throws DbException {
+		synchronized (this) {
+			if (!opening) {
+				opening = true;
+				try {
+					database = getSQLiteDatabase(dbFile, newVersion);
+				} catch (RuntimeException e) {
+					openError = QueryTask.toDbException(e);
+				} finally {
+					ready.countDown();
+				}
+			}
+		}
+		try {
+			ready.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException(e.getMessage());
+		}
+		if (openError != null) {
+			throw openError;
+		}
+	}
+
+	public boolean isReady() {
+		return ready.getCount() == 0 && openError == null;
+	}
+
+	/**
+	 * 预加载注册po类的表结构，并编译findFirstById使用的语句放入连接的语句缓存
+	 */
+	private void warmUp() {
+		for (Class<?> entityType : getMigrator().getEntities()) {
+			try {
+				String sql = getByIdSql(entityType);
+				if (sql != null) {
+					database.compileStatement(sql).close();
+				}
+			} catch (Exception e) {
+				LogUtils.w("warm up " + entityType.getSimpleName() + " failed: "
+						+ e.getMessage());
+			}
+		}
+	}
+
 	/**
 	 * @param entity
 	 * @return
 	 * @throws DbException
 	 */
+	@SuppressWarnings("unchecked")
 	public <T> T findFirstByIdEnableNull(T entity) throws DbException {
-		Selector selector = getSelectorById(entity);
-		T t = findFirstEnableNull(selector);
-		return t;
+		String sql = getByIdSql(entity.getClass());
+		if (sql == null) {
+			// 没有主键，按原来的方式报错
+			return findFirstEnableNull(getSelectorById(entity));
+		}
+		SqlInfo sqlInfo = new SqlInfo();
+		sqlInfo.setSql(sql);
+		for (MyId id : MyTable.get(entity.getClass()).getId()) {
+			Object idValue = id.getColumnValue(entity);
+			if (idValue == null) {
+				throw new DbException("对象[" + entity.getClass()
+						+ "]的id不能是null");
+			}
+			sqlInfo.addBindArg(idValue);
+		}
+		Cursor cursor = execQuery(sqlInfo);
+		try {
+			if (cursor.moveToNext()) {
+				return (T) CursorUtils.getEntity(cursor, entity.getClass());
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		return null;
 	}
 
 	/**
@@ -142,9 +435,33 @@ public abstract class DbUtils implements IDbUtils {
 	 * @throws DbException
 	 */
 	public <T> T findFirstById(T entity) throws DbException {
-		Selector selector = getSelectorById(entity);
-		T t = findFirstEnableNull(selector);
-		return getFindCheck(selector, t);
+		T t = findFirstByIdEnableNull(entity);
+		return t != null ? t : getFindCheck(getSelectorById(entity), t);
+	}
+
+	/**
+	 * 按主键查询一行的sql，主键值绑定为参数，同一张表的sql不变，可以复用连接缓存的预编译语句
+	 * 
+	 * @param entityType
+	 * @return 没有主键时为null
+	 * @throws DbException
+	 */
+	private static String getByIdSql(Class<?> entityType) throws DbException {
+		List<MyId> idList = MyTable.get(entityType).getId();
+		if (idList == null || idList.isEmpty()) {
+			return null;
+		}
+		Selector selector = Selector.from(entityType);
+		StringBuilder sql = new StringBuilder("SELECT ")
+				.append(selector.getColumnSql()).append(" FROM ")
+				.append(selector.getTableName()).append(" WHERE ");
+		for (int i = 0; i < idList.size(); i++) {
+			if (i > 0) {
+				sql.append(" AND ");
+			}
+			sql.append(idList.get(i).getColumnName()).append("=?");
+		}
+		return sql.append(" LIMIT 1").toString();
 	}
 
 	public void deleteById(Object entity) throws DbException {
@@ -188,6 +505,7 @@ public abstract class DbUtils implements IDbUtils {
 				selector.getWhereBuilder());
 		result.setSql(sql.getSql());
 		execNonQuery(result);
+		notifyRowChanged(entity, -1, false);
 	}
 
 	public void replace(Object entity) throws DbException {
@@ -220,6 +538,110 @@ public abstract class DbUtils implements IDbUtils {
 		}
 	}
 
+	/**
+	 * 按主键插入或更新，只写不为null的列，已有的行原地更新而不是删除重建
+	 * 
+	 * 支持复合主键，可以代替saveOrUpdateDoubleKey
+	 * 
+	 * @param entity
+	 * @throws DbException
+	 */
+	public void upsert(Object entity) throws DbException {
+		upsert(Collections.singletonList(entity));
+	}
+
+	/**
+	 * 批量插入或更新，在一个事务中执行，相同列组合的语句只编译一次
+	 * 
+	 * @param entities
+	 * @throws DbException
+	 */
+	public <T> void upsert(List<T> entities) throws DbException {
+		upsert(entities, false);
+	}
+
+	/**
+	 * 批量插入或更新，writeNulls为true时对象中为null的列也写入，用于用完整的行覆盖本地的行，如同步
+	 * 
+	 * @param entities
+	 * @param writeNulls
+	 * @throws DbException
+	 */
+	public <T> void upsert(List<T> entities, boolean writeNulls)
+			throws DbException {
+		if (entities == null || entities.size() < 1)
+			return;
+		Upserter upserter = new Upserter(getDatabase(), isNativeUpsert(),
+				debug, writeNulls);
+		try {
+			beginTransaction();
+
+			for (Object entity : entities) {
+				if (entity != null) {
+					upserter.upsert(entity);
+					// 只写了非null的列时，对象的值不一定与数据库一致
+					notifyRowChanged(entity, 1, writeNulls);
+				}
+			}
+
+			setTransactionSuccessful();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			throw new DbException(e.getMessage());
+		} finally {
+			endTransaction();
+			upserter.close();
+		}
+	}
+
+	private boolean isNativeUpsert() throws DbException {
+		if (nativeUpsert == null) {
+			nativeUpsert = Upserter.supportsNativeUpsert(getSqliteVersion());
+		}
+		return nativeUpsert;
+	}
+
+	public String getSqliteVersion() throws DbException {
+		if (sqliteVersion == null) {
+			List<List<String>> result = execListQuery("SELECT sqlite_version()");
+			sqliteVersion = result.isEmpty() ? "" : result.get(0).get(0);
+		}
+		return sqliteVersion;
+	}
+
+	/**
+	 * @param major
+	 * @param minor
+	 * @param patch
+	 * @return sqlite版本不低于major.minor.patch
+	 * @throws DbException
+	 */
+	public boolean isSqliteVersionAtLeast(int major, int minor, int patch)
+			throws DbException {
+		String[] parts = getSqliteVersion().split("\\.");
+		int[] required = { major, minor, patch };
+		try {
+			for (int i = 0; i < required.length; i++) {
+				int actual = i < parts.length ? Integer.parseInt(parts[i]) : 0;
+				if (actual != required[i]) {
+					return actual > required[i];
+				}
+			}
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 拓扑追溯，从起点沿边查找相连的节点，一条递归查询完成
+	 * 
+	 * @return 用edge、from定义边和起点后调用forEach或findNodes
+	 */
+	public Traversal traverse() {
+		return new Traversal(this);
+	}
+
 	public void ignore(Object entity) throws DbException {
 		try {
 			beginTransaction();
@@ -318,7 +740,7 @@ public abstract class DbUtils implements IDbUtils {
 
 			SqlInfo sql = SqlInfoBuilder.buildDeleteSqlInfo(entityType,
 					whereBuilder);
-			execNonQuery(sql);
+			notifyTableChanged(entityType, execUpdateDelete(sql));
 
 			setTransactionSuccessful();
 		} finally {
@@ -376,8 +798,9 @@ public abstract class DbUtils implements IDbUtils {
 		try {
 			beginTransaction();
 
-			execNonQuery(SqlInfoBuilder
-					.buildUpdateSqlInfo(entity, whereBuilder));
+			int rows = execUpdateDelete(SqlInfoBuilder.buildUpdateSqlInfo(
+					entity, whereBuilder));
+			notifyTableChanged(entity.getClass(), rows);
 
 			setTransactionSuccessful();
 		} finally {
@@ -386,6 +809,16 @@ public abstract class DbUtils implements IDbUtils {
 		}
 	}
 
+	/**
+	 * 按条件修改部分列，不加载对象
+	 * 
+	 * @param entityType
+	 * @return
+	 */
+	public UpdateBuilder update(Class<?> entityType) {
+		return new UpdateBuilder(this, entityType);
+	}
+
 	/**
 	 * 查询结果不能为空，为空时抛出异常
 	 * 
@@ -445,18 +878,38 @@ public abstract class DbUtils implements IDbUtils {
 	 * @throws DbException
 	 */
 	public <T> T findFirstEnableNull(ISelector selector) throws DbException {
+		return findFirstEnableNull(selector, null);
+	}
+
+	/**
+	 * 查询结果可以为空
+	 * 
+	 * @param selector
+	 * @param signal
+	 *            取消信号，可以为null
+	 * @return
+	 * @throws DbException
+	 */
+	public <T> T findFirstEnableNull(ISelector selector,
+			CancellationSignal signal) throws DbException {
 		if (selector.getWhereBuilder() == null) {
 			throw new DbException(getSqlError(NOT_WHERE, selector.limit(1)
 					.getSelectSql()));
 		}
 		String sql = selector.limit(1).getSelectSql();
-		Cursor cursor = execQuery(sql);
+		Cursor cursor = execQuery(sql, signal);
 		try {
 			if (cursor.moveToNext()) {
 				T entity = (T) CursorUtils.getEntity(cursor,
 						selector.getEntityType());
+				fetchRelations(selector, Collections.singletonList(entity));
+				if (isTrackChanges(selector)) {
+					changeTracker.snapshot(entity);
+				}
 				return entity;
 			}
+		} catch (RuntimeException e) {
+			throw toCanceled(e, signal);
 		} finally {
 			IOUtils.closeQuietly(cursor);
 
@@ -464,87 +917,720 @@ public abstract class DbUtils implements IDbUtils {
 		return null;
 	}
 
-	@SuppressWarnings("unchecked")
 	public <T> List<T> findAll(ISelector selector) throws DbException {
+		return findAll(selector, null);
+	}
+
+	/**
+	 * @param selector
+	 * @param signal
+	 *            取消信号，可以为null
+	 * @return
+	 * @throws DbException
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> findAll(ISelector selector, CancellationSignal signal)
+			throws DbException {
 		String sql = selector.getSelectSql();
-		Cursor cursor = execQuery(sql);
+		Cursor cursor = execQuery(sql, signal);
 		List<T> result = new ArrayList<T>();
 		try {
 			while (cursor.moveToNext()) {
+				if (signal != null && signal.isCanceled()) {
+					throw new DbException(QUERY_CANCELED);
+				}
 				T entity = (T) CursorUtils.getEntity(cursor,
 						selector.getEntityType());
 				result.add(entity);
 			}
+		} catch (RuntimeException e) {
+			throw toCanceled(e, signal);
 		} finally {
 			IOUtils.closeQuietly(cursor);
 
 		}
+		fetchRelations(selector, result);
+		if (isTrackChanges(selector)) {
+			changeTracker.snapshot(result);
+		}
 		return result;
 	}
 
-	public <T> List<T> findAll(Object entity) throws DbException {
-		Selector selector = getSelector(entity);
-		return findAll(selector);
+	private static boolean isTrackChanges(ISelector selector) {
+		return selector instanceof Selector
+				&& ((Selector) selector).isTrackChanges();
 	}
 
 	/**
-	 * 根据对象的属性查询该对象的完整属性
+	 * 批量加载Selector.fetch指定的关联
 	 * 
-	 * @param entity
-	 * @return
+	 * @param selector
+	 * @param entities
 	 * @throws DbException
 	 */
-	public Selector getSelector(Object entity) throws DbException {
-		Selector selector = Selector.from(entity.getClass());
-		List<KeyValue> entityKvList = SqlInfoBuilder
-				.entityKeyAndValueList(entity);
-		if (entityKvList != null && !entityKvList.isEmpty()) {
-			WhereBuilder wb = WhereBuilder.b();
-			for (KeyValue keyValue : entityKvList) {
-				wb.append(keyValue.getKey(), "=", keyValue.getValue());
+	private void fetchRelations(ISelector selector, List<?> entities)
+			throws DbException {
+		if (selector instanceof Selector) {
+			List<String> fetchList = ((Selector) selector).getFetchList();
+			if (fetchList != null) {
+				new RelationLoader(this).load(entities, fetchList);
 			}
-			selector.where(wb);
 		}
-		return selector;
 	}
 
 	/**
-	 * 根据对象的id属性查询该对象的完整属性
+	 * 按主键批量查询，结果按ids的顺序排列，查不到的id跳过
 	 * 
-	 * @param entity
+	 * @param entityType
+	 * @param ids
+	 *            单列主键为主键值，复合主键为按MyTable.getId()顺序排列的Object[]或List
 	 * @return
+	 * @throws DbException
 	 */
-	public Selector getSelectorById(Object entity) throws DbException {
-		Selector selector = Selector.from(entity.getClass());
-		MyTable table = MyTable.get(entity.getClass());
-		List<MyId> idList = table.getId();
-		if (idList != null && !idList.isEmpty()) {
-			WhereBuilder wb = WhereBuilder.b();
-			for (int i = 0; i < idList.size(); i++) {
-				MyId id = (MyId) idList.get(i);
-				Object idValue = id.getColumnValue(entity);
-
-				if (idValue == null) {
-					throw new DbException("对象[" + entity.getClass()
-							+ "]的id不能是null");
-				}
-				wb.append(id.getColumnName(), "=", idValue);
+	public <T> List<T> findByIds(Class<T> entityType, Collection<?> ids)
+			throws DbException {
+		List<T> result = new ArrayList<T>();
+		if (ids == null || ids.isEmpty()) {
+			return result;
+		}
+		int size = getIdSize(entityType);
+		Map<String, T> byKey = findByIdKeys(entityType, ids);
+		for (Object id : ids) {
+			T entity = byKey.get(getIdKey(getIdValues(id, size)));
+			if (entity != null) {
+				result.add(entity);
 			}
-			selector.where(wb);
 		}
-		return selector;
+		return result;
 	}
 
-	private void replaceWithoutTransaction(Object entity) throws DbException {
-		execNonQuery(SqlInfoBuilder.buildReplaceSqlInfo(entity));
+	/**
+	 * 按主键批量查询，按SQLite的变量个数上限分批执行绑定参数的IN查询
+	 * 
+	 * @param entityType
+	 * @param ids
+	 *            单列主键为主键值，复合主键为按MyTable.getId()顺序排列的Object[]或List
+	 * @return 以传入的id为键，查不到的id没有对应项；Object[]按引用比较，取值时需要用传入的同一个数组
+	 * @throws DbException
+	 */
+	public <T> Map<Object, T> findMapByIds(Class<T> entityType,
+			Collection<?> ids) throws DbException {
+		Map<Object, T> result = new HashMap<Object, T>();
+		if (ids == null || ids.isEmpty()) {
+			return result;
+		}
+		int size = getIdSize(entityType);
+		Map<String, T> byKey = findByIdKeys(entityType, ids);
+		for (Object id : ids) {
+			T entity = byKey.get(getIdKey(getIdValues(id, size)));
+			if (entity != null) {
+				result.put(id, entity);
+			}
+		}
+		return result;
 	}
 
-	private void saveWithoutTransaction(Object entity) throws DbException {
-		execNonQuery(SqlInfoBuilder.buildInsertSqlInfo(entity));
+	private static int getIdSize(Class<?> entityType) throws DbException {
+		List<MyId> idList = MyTable.get(entityType).getId();
+		if (idList == null || idList.isEmpty()) {
+			throw new DbException("对象[" + entityType + "]没有主键");
+		}
+		return idList.size();
 	}
 
-	private void ignoreWithoutTransaction(Object entity) throws DbException {
+	/**
+	 * 主键值统一转换为数据库值拼成键，写法不同(如Integer和Long、Object[]和List)的同一主键只查询一次
+	 * 
+	 * @return 以getIdKey为键
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> Map<String, T> findByIdKeys(Class<T> entityType,
+			Collection<?> ids) throws DbException {
+		Map<String, T> result = new HashMap<String, T>();
+		MyTable table = MyTable.get(entityType);
+		List<MyId> idList = table.getId();
+		Selector selector = Selector.from(entityType);
+		int chunkSize = RelationLoader.CHUNK_SIZE / idList.size();
+
+		Map<String, Object[]> pending = new LinkedHashMap<String, Object[]>();
+		for (Object id : ids) {
+			Object[] values = getIdValues(id, idList.size());
+			pending.put(getIdKey(values), values);
+		}
+		List<Object[]> chunk = new ArrayList<Object[]>(chunkSize);
+		Iterator<Object[]> iterator = pending.values().iterator();
+		while (iterator.hasNext()) {
+			chunk.add(iterator.next());
+			if (chunk.size() < chunkSize && iterator.hasNext()) {
+				continue;
+			}
+			SqlInfo sqlInfo = new SqlInfo();
+			StringBuilder sql = new StringBuilder();
+			sql.append("SELECT ").append(selector.getColumnSql())
+					.append(" FROM ").append(table.getTableName())
+					.append(" WHERE ");
+			if (idList.size() == 1) {
+				sql.append(idList.get(0).getColumnName()).append(" IN (");
+				for (int i = 0; i < chunk.size(); i++) {
+					sql.append(i > 0 ? ",?" : "?");
+					sqlInfo.addBindArg(TypeConverters
+							.toDbValue(chunk.get(i)[0]));
+				}
+				sql.append(")");
+			} else {
+				for (int i = 0; i < chunk.size(); i++) {
+					Object[] values = chunk.get(i);
+					sql.append(i > 0 ? " OR (" : "(");
+					for (int j = 0; j < idList.size(); j++) {
+						if (j > 0) {
+							sql.append(" AND ");
+						}
+						sql.append(idList.get(j).getColumnName()).append("=?");
+						sqlInfo.addBindArg(TypeConverters.toDbValue(values[j]));
+					}
+					sql.append(")");
+				}
+			}
+			sqlInfo.setSql(sql.toString());
+			Cursor cursor = execQuery(sqlInfo);
+			try {
+				while (cursor.moveToNext()) {
+					T entity = (T) CursorUtils.getEntity(cursor, entityType);
+					Object[] values = new Object[idList.size()];
+					for (int j = 0; j < idList.size(); j++) {
+						values[j] = idList.get(j).getColumnValue(entity);
+					}
+					String key = getIdKey(values);
+					if (pending.containsKey(key)) {
+						result.put(key, entity);
+					}
+				}
+			} finally {
+				IOUtils.closeQuietly(cursor);
+			}
+			chunk.clear();
+		}
+		return result;
+	}
+
+	private static Object[] getIdValues(Object id, int size)
+			throws DbException {
+		Object[] values;
+		if (id instanceof Object[]) {
+			values = (Object[]) id;
+		} else if (id instanceof List) {
+			values = ((List<?>) id).toArray();
+		} else {
+			values = new Object[] { id };
+		}
+		if (values.length != size) {
+			throw new DbException("主键值个数与主键列数不一致：" + values.length + "/"
+					+ size);
+		}
+		return values;
+	}
+
+	private static String getIdKey(Object[] values) {
+		StringBuilder key = new StringBuilder();
+		for (Object value : values) {
+			Object dbValue = TypeConverters.toDbValue(value);
+			// SQLite中1.0与整数主键1相等
+			if (dbValue instanceof Double
+					&& (Double) dbValue == Math.rint((Double) dbValue)
+					&& !Double.isInfinite((Double) dbValue)) {
+				dbValue = ((Double) dbValue).longValue();
+			}
+			key.append(dbValue).append('\u0000');
+		}
+		return key.toString();
+	}
+
+	public <T> List<T> findAll(Object entity) throws DbException {
+		Selector selector = getSelector(entity);
+		return findAll(selector);
+	}
+
+	// ************************************************ profile
+	// ***********************************
+
+	/**
+	 * 切换连接参数，不能在事务中调用；除journal_mode外只作用于主连接，见DbProfile
+	 * 
+	 * @param profile
+	 * @throws DbException
+	 */
+	public void applyProfile(DbProfile profile) throws DbException {
+		// 切换WAL时系统会重新打开主连接，连接级参数在切换之后设置
+		if (profile.getJournalMode() != null) {
+			if (DbProfile.JOURNAL_WAL.equals(profile.getJournalMode())) {
+				// 由系统切换，同时启用连接池
+				getDatabase().enableWriteAheadLogging();
+			} else {
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+						&& getDatabase().isWriteAheadLoggingEnabled()) {
+					getDatabase().disableWriteAheadLogging();
+				}
+				execPragma("journal_mode=" + profile.getJournalMode());
+			}
+		}
+		if (profile.getMmapSize() != null) {
+			execPragma("mmap_size=" + profile.getMmapSize());
+		}
+		if (profile.getCacheSize() != null) {
+			execPragma("cache_size=" + profile.getCacheSize());
+		}
+		if (profile.getTempStore() != null) {
+			execPragma("temp_store=" + profile.getTempStore());
+		}
+		if (profile.getSynchronous() != null) {
+			execPragma("synchronous=" + profile.getSynchronous());
+		}
+	}
+
+	/**
+	 * 在主连接上执行PRAGMA，连接级参数读写都用它，保证与写操作是同一个连接
+	 * 
+	 * 编译的语句不是SELECT，Android总是在主连接上执行
+	 * 
+	 * @param pragma
+	 * @return 第一行第一列，不返回结果的PRAGMA返回null
+	 * @throws DbException
+	 */
+	private String execPragma(String pragma) throws DbException {
+		String sql = "PRAGMA " + pragma;
+		debugSql(sql);
+		SQLiteStatement statement = null;
+		try {
+			statement = getDatabase().compileStatement(sql);
+			return statement.simpleQueryForString();
+		} catch (SQLiteDoneException e) {
+			return null;
+		} catch (SQLiteException e) {
+			throw new DbException(getSqlError(e.getMessage(), sql));
+		} finally {
+			if (statement != null) {
+				statement.close();
+			}
+		}
+	}
+
+	/**
+	 * 读取当前连接参数，用于临时切换后恢复
+	 * 
+	 * @return
+	 * @throws DbException
+	 */
+	public DbProfile readProfile() throws DbException {
+		DbProfile profile = new DbProfile();
+		String mmap = execPragma("mmap_size");
+		if (mmap != null) {
+			profile.setMmapSize(Long.valueOf(mmap));
+		}
+		profile.setCacheSize(Integer.valueOf(execPragma("cache_size")));
+		profile.setTempStore(TEMP_STORE_NAMES[Integer
+				.parseInt(execPragma("temp_store"))]);
+		profile.setSynchronous(SYNCHRONOUS_NAMES[Integer
+				.parseInt(execPragma("synchronous"))]);
+		profile.setJournalMode(execPragma("journal_mode").toUpperCase());
+		return profile;
+	}
+
+	/**
+	 * 在指定连接参数下执行操作，完成后恢复原来的参数
+	 * 
+	 * @param profile
+	 * @param write
+	 * @return
+	 * @throws DbException
+	 */
+	public <T> T withProfile(DbProfile profile, DbWrite<T> write)
+			throws DbException {
+		DbProfile previous = readProfile();
+		applyProfile(profile);
+		try {
+			return write.write(this);
+		} finally {
+			applyProfile(previous);
+		}
+	}
+
+	/**
+	 * 执行PRAGMA，返回第一行第一列，不支持的PRAGMA返回null
+	 * 
+	 * @param pragma
+	 * @return
+	 * @throws DbException
+	 */
+	public String pragma(String pragma) throws DbException {
+		Cursor cursor = execQuery("PRAGMA " + pragma);
+		try {
+			if (cursor.moveToNext()) {
+				return cursor.getString(0);
+			}
+			return null;
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+	}
+
+	/**
+	 * 整库VACUUM，回收空闲页并整理碎片，不能在事务中调用，耗时与库大小成正比
+	 * 
+	 * VACUUM可能重新编号没有INTEGER PRIMARY KEY的表的rowid，全文检索表的docid随之失效，
+	 * 完成后按原表重建注册的po类的全文检索表
+	 * 
+	 * @throws DbException
+	 */
+	public void vacuum() throws DbException {
+		execNonQuery("VACUUM");
+		List<Class<?>> fullText = new ArrayList<Class<?>>();
+		for (Class<?> entityType : getMigrator().getEntities()) {
+			if (!FullTextSchema.getColumns(entityType).isEmpty()) {
+				fullText.add(entityType);
+			}
+		}
+		if (fullText.isEmpty()) {
+			return;
+		}
+		try {
+			beginTransaction();
+			for (Class<?> entityType : fullText) {
+				FullTextSchema.rebuild(getDatabase(), entityType);
+				notifyTableChanged(FullTextSchema.getFtsTableName(EntitySchema
+						.getTableName(entityType)), -1);
+			}
+			setTransactionSuccessful();
+		} finally {
+			endTransaction();
+		}
+	}
+
+	// ************************************************ backup
+	// ***********************************
+
+	/**
+	 * 在线备份整个数据库，不需要关闭数据库，备份期间其他读写继续执行，在后台线程调用
+	 * 
+	 * @param target
+	 *            已存在时覆盖
+	 * @param listener
+	 *            可以为null
+	 * @throws DbException
+	 */
+	public void backupTo(File target, DbBackup.ProgressListener listener)
+			throws DbException {
+		new DbBackup(this, target).copyTo(listener);
+	}
+
+	/**
+	 * 导出部分表或部分行到新文件，用table(...)指定表和条件后调用copyTo
+	 * 
+	 * @param target
+	 * @return
+	 */
+	public DbBackup snapshot(File target) {
+		return new DbBackup(this, target);
+	}
+
+	// ************************************************ async
+	// ***********************************
+
+	/**
+	 * 在后台线程执行数据库任务，结果在主线程回调
+	 * 
+	 * @param task
+	 * @param priority
+	 *            QueryTask.PRIORITY_*
+	 * @param callback
+	 *            可以为null
+	 * @return 可以调用cancel取消，正在执行的查询会被中断
+	 */
+	public <T> QueryTask<T> submit(DbTask<T> task, int priority,
+			DbCallback<T> callback) {
+		return getQueryExecutor().submit(task, priority, callback);
+	}
+
+	/**
+	 * 异步查询第一条数据，结果不能为空，为空时回调onFailure
+	 * 
+	 * @param selector
+	 * @param callback
+	 * @return
+	 */
+	public <T> QueryTask<T> findFirstAsync(final ISelector selector,
+			DbCallback<T> callback) {
+		return submit(new DbTask<T>() {
+
+			@Override
+			public T run(CancellationSignal signal) throws DbException {
+				T t = findFirstEnableNull(selector, signal);
+				return getFindCheck(selector, t);
+			}
+		}, QueryTask.PRIORITY_HIGH, callback);
+	}
+
+	/**
+	 * 根据对象的属性异步查询该对象的完整属性，结果不能为空
+	 * 
+	 * @param entity
+	 * @param callback
+	 * @return
+	 * @throws DbException
+	 */
+	public <T> QueryTask<T> findFirstAsync(Object entity, DbCallback<T> callback)
+			throws DbException {
+		return findFirstAsync(getSelector(entity), callback);
+	}
+
+	public <T> QueryTask<List<T>> findAllAsync(final ISelector selector,
+			DbCallback<List<T>> callback) {
+		return submit(new DbTask<List<T>>() {
+
+			@Override
+			public List<T> run(CancellationSignal signal) throws DbException {
+				return findAll(selector, signal);
+			}
+		}, QueryTask.PRIORITY_NORMAL, callback);
+	}
+
+	private synchronized QueryExecutor getQueryExecutor() {
+		if (queryExecutor == null) {
+			queryExecutor = new QueryExecutor();
+		}
+		return queryExecutor;
+	}
+
+	// ************************************************ write queue
+	// ***********************************
+
+	/**
+	 * 提交写操作到写队列，短时间内到达的写操作合并到一个事务提交
+	 * 
+	 * @param write
+	 * @return 事务提交后完成，操作失败时get()抛出的ExecutionException包装DbException
+	 */
+	public <T> WriteQueue.WriteFuture<T> enqueueWrite(DbWrite<T> write) {
+		return getWriteQueue().enqueue(write);
+	}
+
+	public WriteQueue.WriteFuture<Void> enqueueSave(final Object entity) {
+		return enqueueWrite(new DbWrite<Void>() {
+
+			@Override
+			public Void write(DbUtils db) throws DbException {
+				db.save(entity);
+				return null;
+			}
+		});
+	}
+
+	public WriteQueue.WriteFuture<Void> enqueueReplace(final Object entity) {
+		return enqueueWrite(new DbWrite<Void>() {
+
+			@Override
+			public Void write(DbUtils db) throws DbException {
+				db.replace(entity);
+				return null;
+			}
+		});
+	}
+
+	public WriteQueue.WriteFuture<Void> enqueueUpdateById(final Object entity) {
+		return enqueueWrite(new DbWrite<Void>() {
+
+			@Override
+			public Void write(DbUtils db) throws DbException {
+				db.updateById(entity);
+				return null;
+			}
+		});
+	}
+
+	public WriteQueue.WriteFuture<Void> enqueueDeleteById(final Object entity) {
+		return enqueueWrite(new DbWrite<Void>() {
+
+			@Override
+			public Void write(DbUtils db) throws DbException {
+				db.deleteById(entity);
+				return null;
+			}
+		});
+	}
+
+	private synchronized WriteQueue getWriteQueue() {
+		if (writeQueue == null) {
+			writeQueue = new WriteQueue(this);
+		}
+		return writeQueue;
+	}
+
+	/**
+	 * 按rowid分区并行扫描，分区在查询线程池中执行，忽略selector的排序和分页
+	 * 
+	 * @param selector
+	 * @param combiner
+	 * @return 所有分区合并后的结果
+	 * @throws DbException
+	 */
+	public <A> A parallelScan(Selector selector, ScanCombiner<A> combiner)
+			throws DbException {
+		return parallelScan(selector, combiner, Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	public <A> A parallelScan(Selector selector, ScanCombiner<A> combiner,
+			int partitions) throws DbException {
+		debugSql(selector.getRangeSelectSql(Long.MIN_VALUE, Long.MAX_VALUE));
+		return new PartitionedScan<A>(this, selector, combiner)
+				.execute(partitions);
+	}
+
+	/**
+	 * 将查询结果直接从游标流式写出，不生成实体对象，内存占用与行数无关
+	 * 
+	 * @param selector
+	 * @param writer
+	 *            不会被关闭
+	 * @param format
+	 * @return 写出的行数
+	 * @throws DbException
+	 */
+	public int export(ISelector selector, Writer writer,
+			CursorExporter.Format format) throws DbException {
+		String sql = selector.getSelectSql();
+		Cursor cursor = execQuery(sql);
+		try {
+			return new CursorExporter(writer, format).write(cursor);
+		} catch (IOException e) {
+			throw new DbException(getSqlError(e.getMessage(), sql));
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+	}
+
+	/**
+	 * 以UTF-8写出查询结果，可选gzip压缩
+	 * 
+	 * @param selector
+	 * @param out
+	 *            不会被关闭
+	 * @param format
+	 * @param gzip
+	 * @return 写出的行数
+	 * @throws DbException
+	 */
+	public int export(ISelector selector, OutputStream out,
+			CursorExporter.Format format, boolean gzip) throws DbException {
+		try {
+			GZIPOutputStream zip = gzip ? new GZIPOutputStream(out) : null;
+			Writer writer = new BufferedWriter(new OutputStreamWriter(
+					zip != null ? zip : out, "UTF-8"));
+			int count = export(selector, writer, format);
+			writer.flush();
+			if (zip != null) {
+				zip.finish();
+			}
+			return count;
+		} catch (IOException e) {
+			throw new DbException(e.getMessage());
+		}
+	}
+
+	/**
+	 * 全文检索，返回实体和命中片段，需要先调用selector.match
+	 * 
+	 * @param selector
+	 * @return
+	 * @throws DbException
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<FullTextHit<T>> findAllMatches(Selector selector)
+			throws DbException {
+		if (selector.getMatchQuery() == null) {
+			throw new DbException(getSqlError(NOT_WHERE,
+					selector.getSelectSql()));
+		}
+		// 不修改调用方的selector
+		String sql = selector.copy().snippet().getSelectSql();
+		Cursor cursor = execQuery(sql);
+		List<FullTextHit<T>> result = new ArrayList<FullTextHit<T>>();
+		try {
+			int snippetIndex = cursor.getColumnIndex(Selector.SNIPPET_COLUMN);
+			while (cursor.moveToNext()) {
+				T entity = (T) CursorUtils.getEntity(cursor,
+						selector.getEntityType());
+				result.add(new FullTextHit<T>(entity, cursor
+						.getString(snippetIndex)));
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		return result;
+	}
+
+	/**
+	 * 根据对象的属性查询该对象的完整属性
+	 * 
+	 * @param entity
+	 * @return
+	 * @throws DbException
+	 */
+	public Selector getSelector(Object entity) throws DbException {
+		Selector selector = Selector.from(entity.getClass());
+		List<KeyValue> entityKvList = SqlInfoBuilder
+				.entityKeyAndValueList(entity);
+		if (entityKvList != null && !entityKvList.isEmpty()) {
+			WhereBuilder wb = WhereBuilder.b();
+			for (KeyValue keyValue : entityKvList) {
+				wb.append(keyValue.getKey(), "=",
+						TypeConverters.toDbValue(keyValue.getValue()));
+			}
+			selector.where(wb);
+		}
+		return selector;
+	}
+
+	/**
+	 * 根据对象的id属性查询该对象的完整属性
+	 * 
+	 * @param entity
+	 * @return
+	 */
+	public Selector getSelectorById(Object entity) throws DbException {
+		Selector selector = Selector.from(entity.getClass());
+		MyTable table = MyTable.get(entity.getClass());
+		List<MyId> idList = table.getId();
+		if (idList != null && !idList.isEmpty()) {
+			WhereBuilder wb = WhereBuilder.b();
+			for (int i = 0; i < idList.size(); i++) {
+				MyId id = (MyId) idList.get(i);
+				Object idValue = id.getColumnValue(entity);
+
+				if (idValue == null) {
+					throw new DbException("对象[" + entity.getClass()
+							+ "]的id不能是null");
+				}
+				wb.append(id.getColumnName(), "=",
+						TypeConverters.toDbValue(idValue));
+			}
+			selector.where(wb);
+		}
+		return selector;
+	}
+
+	private void replaceWithoutTransaction(Object entity) throws DbException {
+		execNonQuery(SqlInfoBuilder.buildReplaceSqlInfo(entity));
+		notifyRowChanged(entity, 1, true);
+	}
+
+	private void saveWithoutTransaction(Object entity) throws DbException {
+		execNonQuery(SqlInfoBuilder.buildInsertSqlInfo(entity));
+		notifyRowChanged(entity, 1, true);
+	}
+
+	private void ignoreWithoutTransaction(Object entity) throws DbException {
 		execNonQuery(SqlInfoBuilder.buildIgnoreSqlInfo(entity));
+		notifyRowChanged(entity, -1, false);
 	}
 
 	private void deleteWithoutTransaction(Object entity) throws DbException {
@@ -555,32 +1641,430 @@ public abstract class DbUtils implements IDbUtils {
 		if (entityKvList != null && !entityKvList.isEmpty()) {
 			wb = WhereBuilder.b();
 			for (KeyValue keyValue : entityKvList) {
-				wb.append(keyValue.getKey(), "=", keyValue.getValue());
+				wb.append(keyValue.getKey(), "=",
+						TypeConverters.toDbValue(keyValue.getValue()));
 			}
 		}
 		SqlInfo sql = SqlInfoBuilder.buildDeleteSqlInfo(entity.getClass(), wb);
 		result.setSql(sql.getSql());
 		execNonQuery(result);
+		notifyRowChanged(entity, -1, false);
 	}
 
 	private void updateWithoutTransaction(Object entity) throws DbException {
-		execNonQuery(SqlInfoBuilder.buildUpdateSqlInfo(entity));
+		List<String> changed = changeTracker.getChangedColumns(entity);
+		if (changed == null) {
+			execNonQuery(SqlInfoBuilder.buildUpdateSqlInfo(entity));
+			notifyRowChanged(entity, 1, true);
+		} else if (!changed.isEmpty()) {
+			execNonQuery(buildChangedUpdateSqlInfo(entity, changed));
+			notifyRowChanged(entity, 1, true);
+		}
 	}
 
-	// ************************************************ tools
+	/**
+	 * 只更新修改过的列，改为null的列更新为NULL
+	 * 
+	 * @param entity
+	 * @param changed
+	 * @return
+	 * @throws DbException
+	 */
+	private SqlInfo buildChangedUpdateSqlInfo(Object entity,
+			List<String> changed) throws DbException {
+		MyTable table = MyTable.get(entity.getClass());
+		List<MyId> idList = table.getId();
+		Map<String, Object> values = new HashMap<String, Object>();
+		for (KeyValue kv : SqlInfoBuilder.entityKeyAndValueList(entity)) {
+			values.put(kv.getKey(), kv.getValue());
+		}
+		SqlInfo sqlInfo = new SqlInfo();
+		StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE ").append(table.getTableName()).append(" SET ");
+		for (int i = 0; i < changed.size(); i++) {
+			if (i > 0) {
+				sql.append(",");
+			}
+			sql.append(changed.get(i)).append("=?");
+			sqlInfo.addBindArg(values.get(changed.get(i)));
+		}
+		sql.append(" WHERE ");
+		for (int i = 0; i < idList.size(); i++) {
+			MyId id = idList.get(i);
+			Object idValue = id.getColumnValue(entity);
+			if (idValue == null) {
+				throw new DbException("对象[" + entity.getClass()
+						+ "]的id不能是null");
+			}
+			if (i > 0) {
+				sql.append(" AND ");
+			}
+			sql.append(id.getColumnName()).append("=?");
+			sqlInfo.addBindArg(idValue);
+		}
+		sqlInfo.setSql(sql.toString());
+		return sqlInfo;
+	}
+
+	// ************************************************ table change
 	// ***********************************
 
-	private static void fillContentValues(ContentValues contentValues,
-			List<KeyValue> list) {
-		if (list != null && contentValues != null) {
-			for (KeyValue kv : list) {
-				contentValues.put(kv.getKey(), kv.getValue().toString());
-			}
+	public void addTableChangeListener(TableChangeListener listener) {
+		tableChangeListeners.add(listener);
+	}
+
+	public void removeTableChangeListener(TableChangeListener listener) {
+		tableChangeListeners.remove(listener);
+	}
+
+	/**
+	 * 写操作后调用，更新表版本、丢弃该表对象的快照并通知监听者；直接执行sql修改数据时需要自己调用
+	 * 
+	 * 在事务中调用时先记下，最外层事务提交成功后才更新表版本和通知，事务回滚时丢弃
+	 * 
+	 * @param tableName
+	 * @param rows
+	 *            影响的行数，未知时为-1
+	 */
+	public void notifyTableChanged(String tableName, int rows) {
+		changeTracker.forgetTable(tableName);
+		queueTableChanged(tableName, rows);
+	}
+
+	private void queueTableChanged(String tableName, int rows) {
+		PendingChanges pending = pendingChanges.get();
+		if (pending != null) {
+			pending.add(tableName, rows);
 		} else {
-			LogUtils.w("List<KeyValue> is empty or ContentValues is empty!");
+			dispatchTableChanged(tableName, rows);
+		}
+		// 汇总表由原表的触发器更新，随原表一起通知，观察汇总表的查询才能刷新
+		for (String summary : getSummaryNames(tableName)) {
+			queueTableChanged(summary, -1);
+		}
+	}
+
+	private synchronized List<String> getSummaryNames(String tableName) {
+		if (summaryNames == null) {
+			summaryNames = new HashMap<String, List<String>>();
+			for (SummaryTable summary : getMigrator().getSummaries()) {
+				try {
+					String base = EntitySchema.getTableName(summary
+							.getEntityType());
+					List<String> names = summaryNames.get(base);
+					if (names == null) {
+						names = new ArrayList<String>();
+						summaryNames.put(base, names);
+					}
+					names.add(summary.getName());
+				} catch (DbException e) {
+					LogUtils.w(e.getMessage());
+				}
+			}
+		}
+		List<String> names = summaryNames.get(tableName);
+		return names == null ? Collections.<String> emptyList() : names;
+	}
+
+	private void dispatchTableChanged(String tableName, int rows) {
+		synchronized (tableVersions) {
+			Long version = tableVersions.get(tableName);
+			tableVersions.put(tableName, version == null ? 1 : version + 1);
+		}
+		for (TableChangeListener listener : tableChangeListeners) {
+			listener.onTableChanged(tableName, rows);
+		}
+	}
+
+	private void notifyTableChanged(Class<?> entityType, int rows)
+			throws DbException {
+		notifyTableChanged(MyTable.get(entityType).getTableName(), rows);
+	}
+
+	/**
+	 * 按主键写入一行后调用，只丢弃同一行其他对象的快照
+	 * 
+	 * @param entity
+	 * @param rows
+	 * @param keepSnapshot
+	 *            写入了对象的所有列时为true，事务提交后对象的快照更新为写入的值；否则丢弃对象的快照
+	 * @throws DbException
+	 */
+	private void notifyRowChanged(final Object entity, int rows,
+			boolean keepSnapshot) throws DbException {
+		changeTracker.forgetRow(entity, !keepSnapshot);
+		if (keepSnapshot) {
+			// 回滚时数据库仍是原来的值，原来的快照仍然正确
+			final ChangeTracker.Pending snapshot = changeTracker
+					.capture(entity);
+			if (snapshot != null) {
+				runAfterCommit(new Runnable() {
+					@Override
+					public void run() {
+						changeTracker.restore(entity, snapshot);
+					}
+				});
+			}
+		}
+		queueTableChanged(MyTable.get(entity.getClass()).getTableName(), rows);
+	}
+
+	/**
+	 * @param tableName
+	 * @return 每次写操作加1，事务中的写操作在提交后一起加1
+	 */
+	public long getTableVersion(String tableName) {
+		synchronized (tableVersions) {
+			Long version = tableVersions.get(tableName);
+			return version == null ? 0 : version;
+		}
+	}
+
+	/**
+	 * 观察查询结果，先回调一次初始结果，之后查询涉及的表(包括fetch的关联表)被写入时重新查询，
+	 * 结果有变化才回调新增、删除、修改的行
+	 * 
+	 * 查询和比较在后台线程执行，回调也在后台的一个线程中按顺序执行，不占用主线程；
+	 * 需要直接更新Adapter时用observeOnMainThread。不再使用时调用unsubscribe
+	 * 
+	 * @param selector
+	 * @param callback
+	 * @return
+	 * @throws DbException
+	 */
+	public <T> QuerySubscription<T> observe(Selector selector,
+			DbCallback<QueryChange<T>> callback) throws DbException {
+		return observe(selector, callback, getObserveCallbackExecutor());
+	}
+
+	/**
+	 * 同observe(Selector, DbCallback)，回调在主线程，方便直接更新Adapter
+	 * 
+	 * @param selector
+	 * @param callback
+	 * @return
+	 * @throws DbException
+	 */
+	public <T> QuerySubscription<T> observeOnMainThread(Selector selector,
+			DbCallback<QueryChange<T>> callback) throws DbException {
+		final Handler handler = new Handler(Looper.getMainLooper());
+		return observe(selector, callback, new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				handler.post(command);
+			}
+		});
+	}
+
+	/**
+	 * 同observe(Selector, DbCallback)，回调由callbackExecutor执行，不需要回到主线程时使用
+	 * 
+	 * @param selector
+	 * @param callback
+	 * @param callbackExecutor
+	 *            执行回调的线程，回调需要按顺序执行时使用单线程的Executor
+	 * @return
+	 * @throws DbException
+	 */
+	public <T> QuerySubscription<T> observe(Selector selector,
+			DbCallback<QueryChange<T>> callback, Executor callbackExecutor)
+			throws DbException {
+		QuerySubscription<T> subscription = new QuerySubscription<T>(this,
+				selector, callback, getObserveScheduler(), callbackExecutor);
+		subscription.start();
+		return subscription;
+	}
+
+	private synchronized ScheduledExecutorService getObserveScheduler() {
+		if (observeScheduler == null) {
+			observeScheduler = Executors.newSingleThreadScheduledExecutor();
+		}
+		return observeScheduler;
+	}
+
+	/**
+	 * 与查询线程分开，回调耗时不会推迟其他订阅的查询
+	 */
+	private synchronized Executor getObserveCallbackExecutor() {
+		if (observeCallbackExecutor == null) {
+			observeCallbackExecutor = Executors.newSingleThreadExecutor();
+		}
+		return observeCallbackExecutor;
+	}
+
+	/**
+	 * 读取汇总表的全部分组，列依次为分组列、行数、求和列
+	 * 
+	 * @param name
+	 *            getMigrator()中注册的汇总表名
+	 * @return
+	 * @throws DbException
+	 */
+	public List<List<String>> findSummary(String name) throws DbException {
+		return execListQuery(getSummaryTable(name).getSelectSql());
+	}
+
+	/**
+	 * 读取一个分组的行数
+	 * 
+	 * @param name
+	 * @param groupValues
+	 *            按分组列顺序
+	 * @return 分组不存在时为0
+	 * @throws DbException
+	 */
+	public long getSummaryCount(String name, Object... groupValues)
+			throws DbException {
+		SummaryTable summary = getSummaryTable(name);
+		List<String> columns = summary.getGroupColumns();
+		if (columns.size() != groupValues.length) {
+			throw new DbException("分组值个数与分组列数不一致：" + groupValues.length
+					+ "/" + columns.size());
+		}
+		SqlInfo sqlInfo = new SqlInfo();
+		StringBuilder sql = new StringBuilder("SELECT ")
+				.append(SummaryTable.COUNT_COLUMN).append(" FROM ")
+				.append(name);
+		for (int i = 0; i < columns.size(); i++) {
+			sql.append(i > 0 ? " AND " : " WHERE ").append(
+					SummaryTable.getKeyCondition(columns.get(i), "?"));
+			sqlInfo.addBindArg(groupValues[i]);
+		}
+		sqlInfo.setSql(sql.toString());
+		Cursor cursor = execQuery(sqlInfo);
+		try {
+			return cursor.moveToNext() ? cursor.getLong(0) : 0;
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+	}
+
+	/**
+	 * 与原表重新计算的结果比较
+	 * 
+	 * @param name
+	 * @return 不一致的分组数，0表示一致
+	 * @throws DbException
+	 */
+	public int checkSummary(String name) throws DbException {
+		return getSummaryTable(name).check(getDatabase());
+	}
+
+	/**
+	 * 用原表数据整体重算汇总表
+	 * 
+	 * @param name
+	 * @throws DbException
+	 */
+	public void rebuildSummary(String name) throws DbException {
+		SummaryTable summary = getSummaryTable(name);
+		try {
+			beginTransaction();
+
+			summary.rebuild(getDatabase());
+			notifyTableChanged(name, -1);
+
+			setTransactionSuccessful();
+		} finally {
+			endTransaction();
+		}
+	}
+
+	private SummaryTable getSummaryTable(String name) throws DbException {
+		SummaryTable summary = getMigrator().getSummary(name);
+		if (summary == null) {
+			throw new DbException("汇总表" + name + "没有注册");
+		}
+		return summary;
+	}
+
+	/**
+	 * 增量同步摘要，与对端比较后只拉取和写入有差异的行
+	 * 
+	 * @param entityType
+	 *            需要有主键
+	 * @return
+	 * @throws DbException
+	 */
+	public <T> SyncDigest<T> syncDigest(Class<T> entityType) throws DbException {
+		return new SyncDigest<T>(this, entityType, SyncDigest.DEFAULT_DEPTH);
+	}
+
+	/**
+	 * @param entityType
+	 * @param depth
+	 *            摘要树层数1到4，桶数为16^depth，表越大层数越多
+	 * @return
+	 * @throws DbException
+	 */
+	public <T> SyncDigest<T> syncDigest(Class<T> entityType, int depth)
+			throws DbException {
+		return new SyncDigest<T>(this, entityType, depth);
+	}
+
+	/**
+	 * 分页读取的选项列表，只查询值列和显示列
+	 * 
+	 * @param selector
+	 *            查询条件和排序，limit不起作用
+	 * @param valueColumn
+	 * @param labelColumn
+	 * @return 不再使用时调用close
+	 */
+	public PagedSource pagedSource(Selector selector, String valueColumn,
+			String labelColumn) {
+		return new PagedSource(this, selector, valueColumn, labelColumn,
+				PagedSource.DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * 在目录下管理分库文件，跨分库查询通过ATTACH到单独的内存库执行，不占用本数据库的连接
+	 * 
+	 * @param dir
+	 * @param prefix
+	 *            分库文件名前缀
+	 * @return
+	 */
+	public ShardSet createShardSet(File dir, String prefix) {
+		return new ShardSet(dir, prefix);
+	}
+
+	/**
+	 * 取整表的只读列式快照，表被修改过时重新加载
+	 * 
+	 * @param entityType
+	 * @return
+	 * @throws DbException
+	 */
+	public TableSnapshot getSnapshot(Class<?> entityType) throws DbException {
+		String tableName = MyTable.get(entityType).getTableName();
+		synchronized (tableSnapshots) {
+			TableSnapshot snapshot = tableSnapshots.get(entityType);
+			long version = getTableVersion(tableName);
+			if (snapshot != null && snapshot.getVersion() == version) {
+				return snapshot;
+			}
+			StringBuilder sql = new StringBuilder("SELECT ");
+			for (String column : EntitySchema.getColumns(entityType).keySet()) {
+				sql.append(column).append(",");
+			}
+			sql.setLength(sql.length() - 1);
+			sql.append(" FROM ").append(tableName);
+			Cursor cursor = execQuery(sql.toString());
+			try {
+				snapshot = new TableSnapshot(entityType, cursor, version);
+			} finally {
+				IOUtils.closeQuietly(cursor);
+			}
+			tableSnapshots.put(entityType, snapshot);
+			return snapshot;
 		}
 	}
 
+	// ************************************************ tools
+	// ***********************************
+
 	public void dropDb() throws DbException {
 		Cursor cursor = null;
 		try {
@@ -613,43 +2097,171 @@ public abstract class DbUtils implements IDbUtils {
 		}
 	}
 
+	private void checkQueryPlan(String sql) {
+		QueryPlanChecker checker = queryPlanChecker;
+		if (checker != null) {
+			checker.check(getDatabase(), sql);
+		}
+	}
+
 	public void beginTransaction() {
-		if (allowTransaction) {
-			database.beginTransaction();
+		if (allowTransaction && !inWriteQueue()) {
+			beginTransactionUnchecked();
 		}
 	}
 
 	public void setTransactionSuccessful() {
-		if (allowTransaction) {
-			database.setTransactionSuccessful();
+		if (allowTransaction && !inWriteQueue()) {
+			setTransactionSuccessfulUnchecked();
 		}
 	}
 
 	public void endTransaction() {
-		if (allowTransaction) {
-			database.endTransaction();
+		if (allowTransaction && !inWriteQueue()) {
+			endTransactionUnchecked();
+		}
+	}
+
+	/**
+	 * 不受allowTransaction限制，写队列用来开始批量提交的事务
+	 */
+	void beginTransactionUnchecked() {
+		getDatabase().beginTransaction();
+		PendingChanges pending = pendingChanges.get();
+		if (pending == null) {
+			pending = new PendingChanges();
+			pendingChanges.set(pending);
+		}
+		pending.levels.add(Boolean.FALSE);
+	}
+
+	void setTransactionSuccessfulUnchecked() {
+		getDatabase().setTransactionSuccessful();
+		PendingChanges pending = pendingChanges.get();
+		if (pending != null && !pending.levels.isEmpty()) {
+			pending.levels.set(pending.levels.size() - 1, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * 与SQLiteSession一致：任何一层未成功，最外层事务回滚，记下的表修改全部丢弃
+	 */
+	void endTransactionUnchecked() {
+		PendingChanges pending = pendingChanges.get();
+		boolean ended = false;
+		try {
+			getDatabase().endTransaction();
+			ended = true;
+		} finally {
+			if (pending != null && !pending.levels.isEmpty()) {
+				boolean successful = pending.levels.remove(pending.levels
+						.size() - 1);
+				if (!successful || !ended) {
+					pending.failed = true;
+				}
+				if (pending.levels.isEmpty()) {
+					pendingChanges.remove();
+				}
+			}
+		}
+		if (pending != null && pending.levels.isEmpty() && !pending.failed) {
+			for (Map.Entry<String, Integer> entry : pending.rows.entrySet()) {
+				dispatchTableChanged(entry.getKey(), entry.getValue());
+			}
+			for (Runnable action : pending.afterCommit) {
+				action.run();
+			}
+		}
+	}
+
+	/**
+	 * 当前线程的事务提交成功、表版本更新后执行，回滚时丢弃；不在事务中时立即执行
+	 * 
+	 * @param action
+	 */
+	void runAfterCommit(Runnable action) {
+		PendingChanges pending = pendingChanges.get();
+		if (pending != null) {
+			pending.afterCommit.add(action);
+		} else {
+			action.run();
+		}
+	}
+
+	/**
+	 * 当前线程事务中记下的表修改
+	 */
+	private static class PendingChanges {
+		final List<Boolean> levels = new ArrayList<Boolean>();
+		final Map<String, Integer> rows = new LinkedHashMap<String, Integer>();
+		final List<Runnable> afterCommit = new ArrayList<Runnable>();
+		boolean failed;
+
+		void add(String tableName, int count) {
+			Integer old = rows.get(tableName);
+			rows.put(tableName, old == null ? count : old < 0 || count < 0 ? -1
+					: old + count);
 		}
 	}
 
+	/**
+	 * 写线程内的事务由写队列统一提交
+	 */
+	private boolean inWriteQueue() {
+		WriteQueue queue = writeQueue;
+		return queue != null && queue.isWriterThread();
+	}
+
 	public void execNonQuery(SqlInfo sqlInfo) throws DbException {
 		debugSql(sqlInfo.getSql());
 		try {
 			if (sqlInfo.getBindArgs() != null) {
-				database.execSQL(sqlInfo.getSql(), sqlInfo.getBindArgsAsArray());
+				getDatabase().execSQL(sqlInfo.getSql(),
+						TypeConverters.toDbValues(sqlInfo.getBindArgsAsArray()));
 			} else {
-				database.execSQL(sqlInfo.getSql());
+				getDatabase().execSQL(sqlInfo.getSql());
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DbException(getSqlError(e.getMessage(), sqlInfo.getSql(),
+					sqlInfo.getBindArgsAsArray()));
+		}
+	}
+
+	/**
+	 * 执行UPDATE或DELETE，按原生类型绑定参数
+	 * 
+	 * @param sqlInfo
+	 * @return 影响的行数
+	 * @throws DbException
+	 */
+	public int execUpdateDelete(SqlInfo sqlInfo) throws DbException {
+		debugSql(sqlInfo.getSql());
+		SQLiteStatement statement = null;
+		try {
+			statement = getDatabase().compileStatement(sqlInfo.getSql());
+			Object[] args = sqlInfo.getBindArgsAsArray();
+			if (args != null) {
+				for (int i = 0; i < args.length; i++) {
+					TypeConverters.bind(statement, i + 1, args[i]);
+				}
 			}
+			return statement.executeUpdateDelete();
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new DbException(getSqlError(e.getMessage(), sqlInfo.getSql(),
 					sqlInfo.getBindArgsAsArray()));
+		} finally {
+			if (statement != null) {
+				statement.close();
+			}
 		}
 	}
 
 	public void execNonQuery(String sql) throws DbException {
 		debugSql(sql);
 		try {
-			database.execSQL(sql);
+			getDatabase().execSQL(sql);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new DbException(getSqlError(e.getMessage(), sql));
@@ -659,8 +2271,10 @@ public abstract class DbUtils implements IDbUtils {
 	public Cursor execQuery(SqlInfo sqlInfo) throws DbException {
 		debugSql(sqlInfo.getSql());
 		try {
-			return database.rawQuery(sqlInfo.getSql(),
-					sqlInfo.getBindArgsAsStrArray());
+			// 按原生类型绑定，数值和日期参数不会被当成字符串比较
+			return getDatabase().rawQueryWithFactory(
+					new TypedCursorFactory(sqlInfo.getBindArgsAsArray()),
+					sqlInfo.getSql(), null, null);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new DbException(getSqlError(e.getMessage(), sqlInfo.getSql(),
@@ -670,8 +2284,44 @@ public abstract class DbUtils implements IDbUtils {
 
 	public Cursor execQuery(String sql) throws DbException {
 		debugSql(sql);
+		checkQueryPlan(sql);
+		try {
+			return getDatabase().rawQuery(sql, null);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DbException(getSqlError(e.getMessage(), sql));
+		}
+	}
+
+	/**
+	 * 游标读取时被取消会抛出OperationCanceledException(Android 4.1以上才有这个类，不能直接catch)，
+	 * 转为DbException；其他异常原样抛出
+	 */
+	private static DbException toCanceled(RuntimeException e,
+			CancellationSignal signal) {
+		if (signal != null && signal.isCanceled()) {
+			return new DbException(QUERY_CANCELED);
+		}
+		throw e;
+	}
+
+	/**
+	 * @param sql
+	 * @param signal
+	 *            取消信号，可以为null；Android 4.1以下不支持，按不可取消的查询执行
+	 * @return
+	 * @throws DbException
+	 */
+	public Cursor execQuery(String sql, CancellationSignal signal)
+			throws DbException {
+		if (signal == null
+				|| Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+			return execQuery(sql);
+		}
+		debugSql(sql);
+		checkQueryPlan(sql);
 		try {
-			return database.rawQuery(sql, null);
+			return getDatabase().rawQuery(sql, null, signal);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new DbException(getSqlError(e.getMessage(), sql));
@@ -692,7 +2342,7 @@ public abstract class DbUtils implements IDbUtils {
 		if (array != null) {
 			StringBuilder sb = new StringBuilder();
 			for (Object b : array) {
-				sb.append(b.toString() + ",");
+				sb.append(String.valueOf(b) + ",");
 			}
 			a = StringUtil.deleteLastCharacter(sb);
 		}
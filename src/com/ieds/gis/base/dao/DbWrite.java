@@ -0,0 +1,16 @@
+package com.ieds.gis.base.dao;
+
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 提交到写队列的写操作，在写线程中与其他写操作合并到同一个事务执行
+ * 
+ * 操作内调用DbUtils的save、updateById等方法不会再单独开启事务
+ * 
+ * @author lihx
+ * 
+ */
+public interface DbWrite<T> {
+
+	public T write(DbUtils db) throws DbException;
+}
@@ -0,0 +1,386 @@
+package com.ieds.gis.base.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * po对象的紧凑二进制编码，用于页面间传递对象，代替Java序列化
+ * 
+ * 字段按名称排序后依次编码，不写字段名和类名：先写字段数和非null字段的位图，
+ * 整数和日期用zigzag变长整数，字符串在同一次编码中重复出现时只写序号。
+ * 同一个类的字段不变时编码才能互相解码，只用于进程内或同一版本的应用之间传递
+ * 
+ * po类可以实现Externalizable并在writeExternal/readExternal中调用write/read，
+ * 放入Intent时自动使用这种编码
+ * 
+ * @author lihx
+ * 
+ */
+public class EntityCodec<T> {
+
+	private static final int STRING = 0;
+	private static final int INT = 1;
+	private static final int LONG = 2;
+	private static final int SHORT = 3;
+	private static final int BYTE = 4;
+	private static final int BOOLEAN = 5;
+	private static final int DOUBLE = 6;
+	private static final int FLOAT = 7;
+	private static final int CHAR = 8;
+	private static final int DATE = 9;
+	private static final int BYTES = 10;
+	private static final int ENUM = 11;
+
+	private static final Map<Class<?>, EntityCodec<?>> CODECS = new ConcurrentHashMap<Class<?>, EntityCodec<?>>();
+
+	private final Class<T> type;
+	private final Field[] fields;
+	private final int[] kinds;
+
+	@SuppressWarnings("unchecked")
+	public static <T> EntityCodec<T> get(Class<T> type) {
+		EntityCodec<T> codec = (EntityCodec<T>) CODECS.get(type);
+		if (codec == null) {
+			codec = new EntityCodec<T>(type);
+			CODECS.put(type, codec);
+		}
+		return codec;
+	}
+
+	private EntityCodec(Class<T> type) {
+		this.type = type;
+		List<Field> list = new ArrayList<Field>();
+		for (Field f : type.getDeclaredFields()) {
+			int modifiers = f.getModifiers();
+			if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+					|| f.isSynthetic() || f.getAnnotation(Relation.class) != null) {
+				continue;
+			}
+			f.setAccessible(true);
+			list.add(f);
+		}
+		this.fields = list.toArray(new Field[list.size()]);
+		Arrays.sort(fields, new Comparator<Field>() {
+
+			@Override
+			public int compare(Field lhs, Field rhs) {
+				return lhs.getName().compareTo(rhs.getName());
+			}
+		});
+		this.kinds = new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			kinds[i] = getKind(fields[i]);
+		}
+	}
+
+	private static int getKind(Field field) {
+		Class<?> t = field.getType();
+		if (t == String.class) {
+			return STRING;
+		} else if (t == Integer.class || t == int.class) {
+			return INT;
+		} else if (t == Long.class || t == long.class) {
+			return LONG;
+		} else if (t == Short.class || t == short.class) {
+			return SHORT;
+		} else if (t == Byte.class || t == byte.class) {
+			return BYTE;
+		} else if (t == Boolean.class || t == boolean.class) {
+			return BOOLEAN;
+		} else if (t == Double.class || t == double.class) {
+			return DOUBLE;
+		} else if (t == Float.class || t == float.class) {
+			return FLOAT;
+		} else if (t == Character.class || t == char.class) {
+			return CHAR;
+		} else if (Date.class.isAssignableFrom(t)) {
+			return DATE;
+		} else if (t == byte[].class) {
+			return BYTES;
+		} else if (t.isEnum()) {
+			return ENUM;
+		}
+		throw new IllegalArgumentException("字段[" + field.getDeclaringClass()
+				.getSimpleName() + "." + field.getName() + "]的类型" + t
+				+ "不支持二进制编码");
+	}
+
+	public byte[] encode(T entity) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		write(entity, new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	public T decode(byte[] data) throws IOException {
+		T entity = newInstance();
+		read(entity, new DataInputStream(new ByteArrayInputStream(data)));
+		return entity;
+	}
+
+	/**
+	 * 多个对象共用字符串表
+	 */
+	public byte[] encodeList(List<T> list) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				256 * (list.size() + 1));
+		Output out = new Output(new DataOutputStream(bytes));
+		out.writeVarint(list.size());
+		for (T entity : list) {
+			writeEntity(entity, out);
+		}
+		return bytes.toByteArray();
+	}
+
+	public List<T> decodeList(byte[] data) throws IOException {
+		Input in = new Input(new DataInputStream(
+				new ByteArrayInputStream(data)));
+		int size = in.readVarint();
+		List<T> list = new ArrayList<T>(size);
+		for (int i = 0; i < size; i++) {
+			T entity = newInstance();
+			readEntity(entity, in);
+			list.add(entity);
+		}
+		return list;
+	}
+
+	public void write(T entity, DataOutput out) throws IOException {
+		writeEntity(entity, new Output(out));
+	}
+
+	/**
+	 * 把数据读到已有对象中，用于readExternal
+	 */
+	public void read(T entity, DataInput in) throws IOException {
+		readEntity(entity, new Input(in));
+	}
+
+	private T newInstance() throws IOException {
+		try {
+			return type.newInstance();
+		} catch (Exception e) {
+			throw new IOException("对象[" + type + "]不能创建：" + e.getMessage());
+		}
+	}
+
+	private void writeEntity(T entity, Output out) throws IOException {
+		try {
+			Object[] values = new Object[fields.length];
+			byte[] present = new byte[(fields.length + 7) / 8];
+			for (int i = 0; i < fields.length; i++) {
+				values[i] = fields[i].get(entity);
+				if (values[i] != null) {
+					present[i >> 3] |= 1 << (i & 7);
+				}
+			}
+			out.writeVarint(fields.length);
+			out.out.write(present);
+			for (int i = 0; i < fields.length; i++) {
+				if (values[i] != null) {
+					writeValue(kinds[i], values[i], out);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private void readEntity(T entity, Input in) throws IOException {
+		int count = in.readVarint();
+		if (count != fields.length) {
+			throw new IOException("对象[" + type + "]的字段数" + fields.length
+					+ "与编码中的" + count + "不一致");
+		}
+		byte[] present = new byte[(count + 7) / 8];
+		in.in.readFully(present);
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				if ((present[i >> 3] & (1 << (i & 7))) != 0) {
+					fields[i].set(entity, readValue(kinds[i], fields[i], in));
+				} else if (!fields[i].getType().isPrimitive()) {
+					fields[i].set(entity, null);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private static void writeValue(int kind, Object value, Output out)
+			throws IOException {
+		switch (kind) {
+		case STRING:
+			out.writeString((String) value);
+			break;
+		case INT:
+		case LONG:
+		case SHORT:
+		case BYTE:
+			out.writeZigzag(((Number) value).longValue());
+			break;
+		case BOOLEAN:
+			out.out.writeBoolean((Boolean) value);
+			break;
+		case DOUBLE:
+			out.out.writeDouble((Double) value);
+			break;
+		case FLOAT:
+			out.out.writeFloat((Float) value);
+			break;
+		case CHAR:
+			out.writeVarint((Character) value);
+			break;
+		case DATE:
+			out.writeZigzag(((Date) value).getTime());
+			break;
+		case BYTES:
+			byte[] bytes = (byte[]) value;
+			out.writeVarint(bytes.length);
+			out.out.write(bytes);
+			break;
+		default:
+			out.writeString(((Enum<?>) value).name());
+			break;
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object readValue(int kind, Field field, Input in)
+			throws IOException {
+		switch (kind) {
+		case STRING:
+			return in.readString();
+		case INT:
+			return (int) in.readZigzag();
+		case LONG:
+			return in.readZigzag();
+		case SHORT:
+			return (short) in.readZigzag();
+		case BYTE:
+			return (byte) in.readZigzag();
+		case BOOLEAN:
+			return in.in.readBoolean();
+		case DOUBLE:
+			return in.in.readDouble();
+		case FLOAT:
+			return in.in.readFloat();
+		case CHAR:
+			return (char) in.readVarint();
+		case DATE:
+			return new Date(in.readZigzag());
+		case BYTES:
+			byte[] bytes = new byte[in.readVarint()];
+			in.in.readFully(bytes);
+			return bytes;
+		default:
+			return Enum.valueOf((Class<Enum>) field.getType(), in.readString());
+		}
+	}
+
+	/**
+	 * 字符串第一次出现时写0和UTF-8内容，再次出现时写序号+1
+	 */
+	private static class Output {
+
+		final DataOutput out;
+		final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+		Output(DataOutput out) {
+			this.out = out;
+		}
+
+		void writeVarint(int value) throws IOException {
+			while ((value & ~0x7f) != 0) {
+				out.writeByte((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			out.writeByte(value);
+		}
+
+		void writeZigzag(long value) throws IOException {
+			long v = (value << 1) ^ (value >> 63);
+			while ((v & ~0x7fL) != 0) {
+				out.writeByte((int) ((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+			out.writeByte((int) v);
+		}
+
+		void writeString(String value) throws IOException {
+			Integer index = strings.get(value);
+			if (index != null) {
+				writeVarint(index + 1);
+				return;
+			}
+			strings.put(value, strings.size());
+			writeVarint(0);
+			byte[] bytes = value.getBytes("UTF-8");
+			writeVarint(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static class Input {
+
+		final DataInput in;
+		final List<String> strings = new ArrayList<String>();
+
+		Input(DataInput in) {
+			this.in = in;
+		}
+
+		int readVarint() throws IOException {
+			int result = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = in.readByte();
+				result |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IOException("变长整数格式错误");
+		}
+
+		long readZigzag() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = in.readByte();
+				v |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return (v >>> 1) ^ -(v & 1);
+				}
+			}
+			throw new IOException("变长整数格式错误");
+		}
+
+		String readString() throws IOException {
+			int index = readVarint();
+			if (index > 0) {
+				if (index > strings.size()) {
+					throw new IOException("字符串序号" + index + "不存在");
+				}
+				return strings.get(index - 1);
+			}
+			byte[] bytes = new byte[readVarint()];
+			in.readFully(bytes);
+			String value = new String(bytes, "UTF-8");
+			strings.add(value);
+			return value;
+		}
+	}
+}
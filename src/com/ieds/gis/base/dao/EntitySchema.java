@@ -0,0 +1,166 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.lidroid.xutils.db.table.MyId;
+import com.lidroid.xutils.db.table.MyTable;
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 根据po类生成表结构，列与Selector查询的字段一致
+ * 
+ * @author lihx
+ * 
+ */
+public class EntitySchema {
+
+	private EntitySchema() {
+	}
+
+	/**
+	 * @param entityType
+	 * @return 列名与SQLite类型，按字段声明顺序
+	 */
+	public static LinkedHashMap<String, String> getColumns(Class<?> entityType) {
+		LinkedHashMap<String, String> columns = new LinkedHashMap<String, String>();
+		for (Field f : entityType.getDeclaredFields()) {
+			if (Modifier.isStatic(f.getModifiers()) || f.isSynthetic()
+					|| f.getAnnotation(Relation.class) != null) {
+				continue;
+			}
+			columns.put(f.getName(), getDbType(f.getType()));
+		}
+		return columns;
+	}
+
+	public static String getDbType(Class<?> type) {
+		String converted = TypeConverters.getDbType(type);
+		if (converted != null) {
+			return converted;
+		}
+		if (type == int.class || type == Integer.class || type == long.class
+				|| type == Long.class || type == short.class
+				|| type == Short.class || type == byte.class
+				|| type == Byte.class || type == boolean.class
+				|| type == Boolean.class) {
+			return "INTEGER";
+		}
+		if (type == float.class || type == Float.class || type == double.class
+				|| type == Double.class) {
+			return "REAL";
+		}
+		if (type == byte[].class) {
+			return "BLOB";
+		}
+		return "TEXT";
+	}
+
+	/**
+	 * @param entityType
+	 * @return 主键列名，复合主键按声明顺序
+	 * @throws DbException
+	 */
+	public static List<String> getIdColumns(Class<?> entityType)
+			throws DbException {
+		List<String> result = new ArrayList<String>();
+		List<MyId> idList = MyTable.get(entityType).getId();
+		if (idList != null) {
+			for (MyId id : idList) {
+				result.add(id.getColumnName());
+			}
+		}
+		return result;
+	}
+
+	public static String getTableName(Class<?> entityType) throws DbException {
+		return MyTable.get(entityType).getTableName();
+	}
+
+	/**
+	 * 根据Index、CompositeIndex、CompositeIndexes注解生成建索引语句
+	 * 
+	 * @param entityType
+	 * @return
+	 * @throws DbException
+	 */
+	public static List<String> getCreateIndexSql(Class<?> entityType)
+			throws DbException {
+		String tableName = getTableName(entityType);
+		List<String> result = new ArrayList<String>();
+		for (Field f : entityType.getDeclaredFields()) {
+			Index index = f.getAnnotation(Index.class);
+			if (index != null) {
+				result.add(buildIndexSql(tableName, index.name(),
+						index.unique(), new String[] { f.getName() }));
+			}
+		}
+		CompositeIndex composite = entityType
+				.getAnnotation(CompositeIndex.class);
+		if (composite != null) {
+			result.add(buildIndexSql(tableName, composite.name(),
+					composite.unique(), composite.columns()));
+		}
+		CompositeIndexes composites = entityType
+				.getAnnotation(CompositeIndexes.class);
+		if (composites != null) {
+			for (CompositeIndex c : composites.value()) {
+				result.add(buildIndexSql(tableName, c.name(), c.unique(),
+						c.columns()));
+			}
+		}
+		return result;
+	}
+
+	private static String buildIndexSql(String tableName, String name,
+			boolean unique, String[] columns) {
+		StringBuilder indexName = new StringBuilder();
+		StringBuilder columnList = new StringBuilder();
+		indexName.append("idx_").append(tableName);
+		for (int i = 0; i < columns.length; i++) {
+			indexName.append("_").append(columns[i]);
+			if (i > 0) {
+				columnList.append(",");
+			}
+			columnList.append(columns[i]);
+		}
+		return "CREATE " + (unique ? "UNIQUE " : "") + "INDEX IF NOT EXISTS "
+				+ (name.length() > 0 ? name : indexName.toString()) + " ON "
+				+ tableName + " (" + columnList + ")";
+	}
+
+	public static String getCreateTableSql(Class<?> entityType)
+			throws DbException {
+		return getCreateTableSql(entityType, getTableName(entityType));
+	}
+
+	public static String getCreateTableSql(Class<?> entityType,
+			String tableName) throws DbException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("CREATE TABLE IF NOT EXISTS ").append(tableName).append(" (");
+		for (Map.Entry<String, String> column : getColumns(entityType)
+				.entrySet()) {
+			sb.append(column.getKey()).append(" ").append(column.getValue())
+					.append(",");
+		}
+		List<String> ids = getIdColumns(entityType);
+		if (ids.isEmpty()) {
+			sb.setLength(sb.length() - 1);
+		} else {
+			sb.append("PRIMARY KEY (");
+			for (int i = 0; i < ids.size(); i++) {
+				if (i > 0) {
+					sb.append(",");
+				}
+				sb.append(ids.get(i));
+			}
+			sb.append(")");
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+}
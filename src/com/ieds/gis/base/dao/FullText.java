@@ -0,0 +1,17 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 全文检索列，表中有此注解的列会同步到FTS虚拟表"表名_fts"，查询时用Selector.match
+ * 
+ * @author lihx
+ * 
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface FullText {
+}
@@ -0,0 +1,29 @@
+package com.ieds.gis.base.dao;
+
+/**
+ * 全文检索结果
+ * 
+ * @author lihx
+ * 
+ */
+public class FullTextHit<T> {
+
+	private final T entity;
+	private final String snippet;
+
+	public FullTextHit(T entity, String snippet) {
+		this.entity = entity;
+		this.snippet = snippet;
+	}
+
+	public T getEntity() {
+		return entity;
+	}
+
+	/**
+	 * 命中片段，关键词用&lt;b&gt;&lt;/b&gt;标记
+	 */
+	public String getSnippet() {
+		return snippet;
+	}
+}
@@ -0,0 +1,196 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
+
+/**
+ * 全文检索表
+ * 
+ * FullText注解的列镜像到FTS4虚拟表"表名_fts"，FTS列名为"fts_列名"以免与原表列名冲突，docid对应原表rowid。
+ * 由触发器保持同步，save、replace、updateById、delete等所有写操作都会更新索引；
+ * INSERT OR REPLACE删除旧行时依赖DbUtils打开的recursive_triggers触发DELETE触发器
+ * 
+ * docid对应的是原表的隐式rowid。主键为TEXT等非INTEGER PRIMARY KEY的表，rowid不是固定的：
+ * 整库VACUUM可能重新编号，不保留rowid的拷贝(如INSERT INTO ... SELECT 列)也会生成新的rowid，
+ * 之后索引指向错误的行。需要整库VACUUM时用DbUtils.vacuum，完成后会重建索引；
+ * 自行拷贝或重建原表后调用rebuild。增量的incremental_vacuum只移动页，不影响rowid
+ * 
+ * 分词器依次尝试icu(中文按词切分)、unicode61、simple
+ * 
+ * @author lihx
+ * 
+ */
+public class FullTextSchema {
+
+	public static final String SUFFIX = "_fts";
+	public static final String COLUMN_PREFIX = "fts_";
+	private static final String[] TOKENIZERS = { "icu zh_CN", "unicode61",
+			"simple" };
+
+	private FullTextSchema() {
+	}
+
+	public static String getFtsTableName(String tableName) {
+		return tableName + SUFFIX;
+	}
+
+	public static List<String> getColumns(Class<?> entityType) {
+		List<String> result = new ArrayList<String>();
+		for (Field f : entityType.getDeclaredFields()) {
+			if (f.getAnnotation(FullText.class) != null) {
+				result.add(f.getName());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 全文检索表或触发器缺失、列变化时重建
+	 * 
+	 * @param db
+	 * @param entityType
+	 * @throws DbException
+	 */
+	public static void ensure(SQLiteDatabase db, Class<?> entityType)
+			throws DbException {
+		List<String> columns = getColumns(entityType);
+		String tableName = EntitySchema.getTableName(entityType);
+		String ftsName = getFtsTableName(tableName);
+		if (columns.isEmpty()) {
+			return;
+		}
+		if (isUpToDate(db, tableName, ftsName, columns)) {
+			return;
+		}
+		rebuild(db, entityType);
+	}
+
+	/**
+	 * 删除并重新创建全文检索表和触发器，用原表数据整体填充
+	 * 
+	 * @param db
+	 * @param entityType
+	 * @throws DbException
+	 */
+	public static void rebuild(SQLiteDatabase db, Class<?> entityType)
+			throws DbException {
+		List<String> columns = getColumns(entityType);
+		String tableName = EntitySchema.getTableName(entityType);
+		String ftsName = getFtsTableName(tableName);
+
+		drop(db, tableName);
+		if (columns.isEmpty()) {
+			return;
+		}
+		createVirtualTable(db, ftsName, columns);
+
+		String ftsColumns = join(columns, COLUMN_PREFIX, "");
+		String newValues = join(columns, "new.", "");
+		exec(db, "INSERT INTO " + ftsName + " (docid," + ftsColumns
+				+ ") SELECT rowid," + join(columns, "", "") + " FROM "
+				+ tableName);
+		exec(db, "CREATE TRIGGER " + tableName + "_fts_ai AFTER INSERT ON "
+				+ tableName + " BEGIN INSERT INTO " + ftsName + " (docid,"
+				+ ftsColumns + ") VALUES (new.rowid," + newValues + "); END");
+		StringBuilder set = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				set.append(",");
+			}
+			set.append(COLUMN_PREFIX).append(columns.get(i)).append("=new.")
+					.append(columns.get(i));
+		}
+		exec(db, "CREATE TRIGGER " + tableName + "_fts_au AFTER UPDATE ON "
+				+ tableName + " BEGIN UPDATE " + ftsName + " SET " + set
+				+ " WHERE docid=old.rowid; END");
+		exec(db, "CREATE TRIGGER " + tableName + "_fts_ad AFTER DELETE ON "
+				+ tableName + " BEGIN DELETE FROM " + ftsName
+				+ " WHERE docid=old.rowid; END");
+	}
+
+	public static void drop(SQLiteDatabase db, String tableName)
+			throws DbException {
+		exec(db, "DROP TRIGGER IF EXISTS " + tableName + "_fts_bi");
+		exec(db, "DROP TRIGGER IF EXISTS " + tableName + "_fts_ai");
+		exec(db, "DROP TRIGGER IF EXISTS " + tableName + "_fts_au");
+		exec(db, "DROP TRIGGER IF EXISTS " + tableName + "_fts_ad");
+		exec(db, "DROP TABLE IF EXISTS " + getFtsTableName(tableName));
+	}
+
+	private static void createVirtualTable(SQLiteDatabase db, String ftsName,
+			List<String> columns) throws DbException {
+		String definition = join(columns, COLUMN_PREFIX, "");
+		for (String tokenizer : TOKENIZERS) {
+			String sql = "CREATE VIRTUAL TABLE " + ftsName + " USING fts4("
+					+ definition + ",tokenize=" + tokenizer + ")";
+			try {
+				LogUtils.d(sql);
+				db.execSQL(sql);
+				return;
+			} catch (SQLiteException e) {
+				LogUtils.w("tokenizer " + tokenizer + " unavailable: "
+						+ e.getMessage());
+			}
+		}
+		throw new DbException("无法创建全文检索表" + ftsName);
+	}
+
+	private static boolean isUpToDate(SQLiteDatabase db, String tableName,
+			String ftsName, List<String> columns) {
+		List<String> existing = new ArrayList<String>(SchemaMigrator
+				.getTableInfo(db, ftsName).keySet());
+		if (existing.size() != columns.size()) {
+			return false;
+		}
+		for (String column : columns) {
+			if (!existing.contains(COLUMN_PREFIX + column)) {
+				return false;
+			}
+		}
+		// 旧版本的BEFORE INSERT触发器在INSERT OR IGNORE忽略插入时会误删索引，存在时重建
+		Cursor cursor = db.rawQuery(
+				"SELECT count(*), sum(name=?) FROM sqlite_master"
+						+ " WHERE type='trigger' AND tbl_name=?"
+						+ " AND name IN (?,?,?,?)", new String[] {
+						tableName + "_fts_bi", tableName,
+						tableName + "_fts_bi", tableName + "_fts_ai",
+						tableName + "_fts_au", tableName + "_fts_ad" });
+		try {
+			return cursor.moveToNext() && cursor.getInt(0) == 3
+					&& cursor.getInt(1) == 0;
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+	}
+
+	private static String join(List<String> columns, String prefix,
+			String suffix) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				sb.append(",");
+			}
+			sb.append(prefix).append(columns.get(i)).append(suffix);
+		}
+		return sb.toString();
+	}
+
+	private static void exec(SQLiteDatabase db, String sql) throws DbException {
+		LogUtils.d(sql);
+		try {
+			db.execSQL(sql);
+		} catch (SQLiteException e) {
+			throw new DbException("异常原因：" + e.getMessage() + "\n异常语句：sql=("
+					+ sql + ")");
+		}
+	}
+}
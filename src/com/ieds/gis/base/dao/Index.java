@@ -0,0 +1,24 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 单列索引，建表和升级时由SchemaMigrator自动创建
+ * 
+ * @author lihx
+ * 
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Index {
+
+	/**
+	 * 索引名，默认为idx_表名_列名
+	 */
+	String name() default "";
+
+	boolean unique() default false;
+}
@@ -0,0 +1,38 @@
+package com.ieds.gis.base.dao;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 一个版本的升级步骤，升级到version时执行
+ * 
+ * @author lihx
+ * 
+ */
+public abstract class Migration {
+
+	private final int version;
+	private final String name;
+
+	public Migration(int version, String name) {
+		this.version = version;
+		this.name = name;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * 在升级事务中执行，不要自己开启或结束事务
+	 * 
+	 * @param db
+	 * @throws DbException
+	 */
+	public abstract void migrate(SQLiteDatabase db) throws DbException;
+}
@@ -0,0 +1,22 @@
+package com.ieds.gis.base.dao;
+
+/**
+ * 升级进度，每完成一个步骤回调一次，在执行升级的线程中调用
+ * 
+ * @author lihx
+ * 
+ */
+public interface MigrationListener {
+
+	/**
+	 * @param name
+	 *            步骤名称
+	 * @param step
+	 *            已完成的步骤数
+	 * @param total
+	 *            步骤总数
+	 * @param millis
+	 *            该步骤耗时
+	 */
+	public void onStep(String name, int step, int total, long millis);
+}
@@ -0,0 +1,458 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.IOUtils;
+
+/**
+ * 按Selector分页读取的选项列表，供下拉框和列表控件使用，不需要先把全部选项加载到内存
+ * 
+ * 只查询值列和显示列，按pageSize分页读取，最近使用的MAX_PAGES页缓存在内存中。
+ * 搜索条件在SQLite中执行，修改条件或表被写入时清空缓存
+ * 
+ * 按键集分页：记住每页最后一行的排序列和rowid，下一页从它之后开始读取，不用OFFSET跳过前面的行，
+ * 顺序滚动时每页的代价与位置无关；跳页时从最近的已知页之后用OFFSET补足。排序最后加rowid保证顺序唯一
+ * 
+ * 只弱引用地监听表的修改，不再使用的PagedSource(及其OnChangedListener引用的Activity)可以被回收；
+ * 仍然建议在页面销毁时调用close
+ * 
+ * <pre>
+ * PagedSource source = db.pagedSource(Selector.from(EQUIP.class)
+ * 		.where(&quot;line_id&quot;, &quot;=&quot;, lineId).orderBy(&quot;equip_name&quot;), &quot;id&quot;,
+ * 		&quot;equip_name&quot;);
+ * source.setFilter(&quot;开关&quot;);
+ * int count = source.getCount();
+ * PagedSource.Option option = source.peek(position); // 未加载时为null，加载后回调listener
+ * </pre>
+ * 
+ * @author lihx
+ * 
+ */
+public class PagedSource {
+
+	public static final int DEFAULT_PAGE_SIZE = 50;
+	public static final int MAX_PAGES = 8;
+
+	public static class Option {
+
+		private final String value;
+		private final String label;
+
+		public Option(String value, String label) {
+			this.value = value;
+			this.label = label;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+
+	/**
+	 * 数据变化并提交后在主线程回调，控件收到后刷新；事务回滚时不回调
+	 */
+	public interface OnChangedListener {
+
+		public void onChanged();
+	}
+
+	private final DbUtils db;
+	private final Selector selector;
+	private final String valueColumn;
+	private final String labelColumn;
+	private final int pageSize;
+	private final Map<Integer, List<Option>> pages = new LinkedHashMap<Integer, List<Option>>(
+			MAX_PAGES, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<Integer, List<Option>> eldest) {
+			return size() > MAX_PAGES;
+		}
+	};
+	/** 页号与该页最后一行的排序键(排序列的值和rowid)，比页缓存小，不随页淘汰 */
+	private final Map<Integer, Object[]> lastKeys = new HashMap<Integer, Object[]>();
+	private final Set<Integer> loading = new HashSet<Integer>();
+	private final WeakListener tableListener;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private String filter;
+	private int count = -1;
+	/** 条件或数据变化时加1，丢弃旧条件下异步读取的页 */
+	private int generation = 0;
+	private OnChangedListener listener;
+
+	PagedSource(DbUtils db, Selector selector, String valueColumn,
+			String labelColumn, int pageSize) {
+		this.db = db;
+		this.selector = selector;
+		this.valueColumn = valueColumn;
+		this.labelColumn = labelColumn;
+		this.pageSize = pageSize;
+		this.tableListener = new WeakListener(db, this);
+		db.addTableChangeListener(tableListener);
+	}
+
+	public void setOnChangedListener(OnChangedListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * 按显示列模糊搜索
+	 * 
+	 * @param filter
+	 *            为null或空时不过滤
+	 */
+	public synchronized void setFilter(String filter) {
+		this.filter = filter == null || filter.length() == 0 ? null : filter;
+		invalidate();
+	}
+
+	public synchronized int getCount() throws DbException {
+		if (count < 0) {
+			List<List<String>> result = db.execListQuery("SELECT count(*)"
+					+ getFromSql());
+			count = result.isEmpty() ? 0 : Integer.parseInt(result.get(0)
+					.get(0));
+		}
+		return count;
+	}
+
+	/**
+	 * 同步读取，所在页没有缓存时查询数据库
+	 * 
+	 * @param position
+	 * @return 超出范围时为null
+	 * @throws DbException
+	 */
+	public Option get(int position) throws DbException {
+		int page = position / pageSize;
+		int gen;
+		synchronized (this) {
+			List<Option> options = pages.get(page);
+			if (options != null) {
+				return getOption(options, position);
+			}
+			gen = generation;
+		}
+		Page loaded = loadPage(page, null);
+		synchronized (this) {
+			if (gen == generation) {
+				putPage(page, loaded);
+			}
+		}
+		return getOption(loaded.options, position);
+	}
+
+	/**
+	 * 只从缓存读取，没有缓存时在后台读取所在页，读取后回调OnChangedListener
+	 * 
+	 * @param position
+	 * @return 没有缓存或超出范围时为null
+	 */
+	public synchronized Option peek(int position) {
+		final int page = position / pageSize;
+		List<Option> options = pages.get(page);
+		if (options != null) {
+			return getOption(options, position);
+		}
+		if (loading.add(page)) {
+			final int gen = generation;
+			db.submit(new DbTask<Page>() {
+
+				@Override
+				public Page run(CancellationSignal signal) throws DbException {
+					return loadPage(page, signal);
+				}
+			}, QueryTask.PRIORITY_HIGH, new DbCallback<Page>() {
+
+				@Override
+				public void onSuccess(Page result) {
+					synchronized (PagedSource.this) {
+						if (gen != generation) {
+							return;
+						}
+						loading.remove(page);
+						putPage(page, result);
+					}
+					notifyChanged();
+				}
+
+				@Override
+				public void onFailure(DbException e) {
+					synchronized (PagedSource.this) {
+						if (gen == generation) {
+							loading.remove(page);
+						}
+					}
+					e.printStackTrace();
+				}
+			});
+		}
+		return null;
+	}
+
+	/**
+	 * 查询值对应的显示文字，用于显示已选中的值，不受搜索条件影响
+	 * 
+	 * @param value
+	 *            未选择时为null
+	 * @return 没有时为null
+	 * @throws DbException
+	 */
+	public String findLabel(String value) throws DbException {
+		if (value == null) {
+			return null;
+		}
+		List<List<String>> result = db.execListQuery("SELECT " + labelColumn
+				+ " FROM " + selector.getTableName() + " WHERE " + valueColumn
+				+ "=" + quote(value) + " LIMIT 1");
+		return result.isEmpty() ? null : result.get(0).get(0);
+	}
+
+	/**
+	 * 不再使用时调用，停止监听表的修改
+	 */
+	public void close() {
+		db.removeTableChangeListener(tableListener);
+	}
+
+	void onTableChanged(String tableName, int rows) {
+		if (tableName.equals(selector.getTableName())) {
+			synchronized (this) {
+				invalidate();
+			}
+			// 写操作可能在后台线程
+			handler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					notifyChanged();
+				}
+			});
+		}
+	}
+
+	private void invalidate() {
+		generation++;
+		count = -1;
+		pages.clear();
+		lastKeys.clear();
+		loading.clear();
+	}
+
+	private void notifyChanged() {
+		OnChangedListener l = listener;
+		if (l != null) {
+			l.onChanged();
+		}
+	}
+
+	private Option getOption(List<Option> options, int position) {
+		int index = position % pageSize;
+		return index < options.size() ? options.get(index) : null;
+	}
+
+	private void putPage(int page, Page loaded) {
+		pages.put(page, loaded.options);
+		if (loaded.lastKey != null) {
+			lastKeys.put(page, loaded.lastKey);
+		}
+	}
+
+	private Page loadPage(int page, CancellationSignal signal)
+			throws DbException {
+		List<Selector.OrderBy> orderBy = selector.getOrderByList() == null ? new ArrayList<Selector.OrderBy>()
+				: selector.getOrderByList();
+		StringBuilder sql = new StringBuilder("SELECT ").append(valueColumn)
+				.append(",").append(labelColumn);
+		for (Selector.OrderBy order : orderBy) {
+			sql.append(",").append(order.getColumnName());
+		}
+		sql.append(",rowid");
+		synchronized (this) {
+			// 从最近的已知页之后开始
+			int known = page - 1;
+			while (known >= 0 && !lastKeys.containsKey(known)) {
+				known--;
+			}
+			sql.append(getFromSql(known >= 0 ? getAfterSql(orderBy,
+					lastKeys.get(known)) : null));
+			sql.append(selector.getOrderBySql())
+					.append(orderBy.isEmpty() ? " ORDER BY " : ",")
+					.append("rowid LIMIT ").append(pageSize);
+			int skip = (page - known - 1) * pageSize;
+			if (skip > 0) {
+				sql.append(" OFFSET ").append(skip);
+			}
+		}
+		Page result = new Page();
+		int keyCount = orderBy.size() + 1;
+		Cursor cursor = db.execQuery(sql.toString(), signal);
+		try {
+			while (cursor.moveToNext()) {
+				result.options.add(new Option(cursor.getString(0), cursor
+						.getString(1)));
+				if (cursor.isLast()) {
+					result.lastKey = new Object[keyCount];
+					for (int i = 0; i < keyCount; i++) {
+						result.lastKey[i] = getValue(cursor, i + 2);
+					}
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		return result;
+	}
+
+	/**
+	 * 排在key之后的行：(c1后于v1) OR (c1=v1 AND c2后于v2) ... OR (各列相等 AND rowid>r)
+	 * 
+	 * 不用行值比较(SQLite 3.15以上)；NULL在升序中最小、降序中最后，按此处理
+	 */
+	private static String getAfterSql(List<Selector.OrderBy> orderBy,
+			Object[] key) {
+		StringBuilder sql = new StringBuilder("(");
+		StringBuilder equal = new StringBuilder();
+		for (int i = 0; i <= orderBy.size(); i++) {
+			String column = i < orderBy.size() ? orderBy.get(i)
+					.getColumnName() : "rowid";
+			boolean desc = i < orderBy.size() && orderBy.get(i).isDesc();
+			Object value = key[i];
+			String after;
+			if (value == null) {
+				after = desc ? "0" : column + " IS NOT NULL";
+			} else if (desc) {
+				after = "(" + column + "<" + toLiteral(value) + " OR "
+						+ column + " IS NULL)";
+			} else {
+				after = column + ">" + toLiteral(value);
+			}
+			sql.append(i > 0 ? " OR (" : "(").append(equal).append(after)
+					.append(")");
+			equal.append(column)
+					.append(value == null ? " IS NULL" : "=" + toLiteral(value))
+					.append(" AND ");
+		}
+		return sql.append(")").toString();
+	}
+
+	private static Object getValue(Cursor cursor, int index) {
+		switch (cursor.getType(index)) {
+		case Cursor.FIELD_TYPE_NULL:
+			return null;
+		case Cursor.FIELD_TYPE_INTEGER:
+			return cursor.getLong(index);
+		case Cursor.FIELD_TYPE_FLOAT:
+			return cursor.getDouble(index);
+		case Cursor.FIELD_TYPE_BLOB:
+			return cursor.getBlob(index);
+		default:
+			return cursor.getString(index);
+		}
+	}
+
+	private static String toLiteral(Object value) {
+		if (value instanceof byte[]) {
+			StringBuilder hex = new StringBuilder("X'");
+			for (byte b : (byte[]) value) {
+				hex.append(String.format("%02X", b));
+			}
+			return hex.append("'").toString();
+		}
+		if (value instanceof String) {
+			return quote((String) value);
+		}
+		return String.valueOf(value);
+	}
+
+	private String getFromSql() {
+		return getFromSql(null);
+	}
+
+	private String getFromSql(String extraCondition) {
+		String tableName = selector.getTableName();
+		StringBuilder result = new StringBuilder(" FROM ").append(tableName);
+		List<String> conditions = new ArrayList<String>();
+		if (selector.getWhereBuilder() != null
+				&& selector.getWhereBuilder().toString().length() > 0) {
+			conditions.add("(" + selector.getWhereBuilder().toString() + ")");
+		}
+		if (selector.getMatchQuery() != null) {
+			String ftsName = FullTextSchema.getFtsTableName(tableName);
+			conditions.add("rowid IN (SELECT docid FROM " + ftsName
+					+ " WHERE " + ftsName + " MATCH "
+					+ quote(selector.getMatchQuery()) + ")");
+		}
+		if (filter != null) {
+			conditions.add(labelColumn + " LIKE "
+					+ quote("%" + filter.replace("\\", "\\\\")
+							.replace("%", "\\%").replace("_", "\\_") + "%")
+					+ " ESCAPE '\\'");
+		}
+		if (extraCondition != null) {
+			conditions.add(extraCondition);
+		}
+		for (int i = 0; i < conditions.size(); i++) {
+			result.append(i == 0 ? " WHERE " : " AND ").append(
+					conditions.get(i));
+		}
+		return result.toString();
+	}
+
+	private static String quote(String value) {
+		return "'" + value.replace("'", "''") + "'";
+	}
+
+	private static class Page {
+		final List<Option> options = new ArrayList<Option>();
+		Object[] lastKey;
+	}
+
+	/**
+	 * DbUtils只通过它弱引用PagedSource，PagedSource被回收后下次通知时移除自己
+	 */
+	private static class WeakListener implements TableChangeListener {
+		private final DbUtils db;
+		private final WeakReference<PagedSource> source;
+
+		WeakListener(DbUtils db, PagedSource source) {
+			this.db = db;
+			this.source = new WeakReference<PagedSource>(source);
+		}
+
+		@Override
+		public void onTableChanged(String tableName, int rows) {
+			PagedSource s = source.get();
+			if (s == null) {
+				db.removeTableChangeListener(this);
+			} else {
+				s.onTableChanged(tableName, rows);
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.ieds.gis.base.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.IOUtils;
+
+/**
+ * 只读分区并行扫描
+ * 
+ * 按rowid把Selector的查询范围切成若干段，每段用ScanCombiner累加，最后合并结果。
+ * 适用于全表统计等不需要排序和分页的查询
+ * 
+ * 分区提交到DbUtils的查询线程池，调用线程也执行分区：先扫描第一段，再接手还没有开始执行的分区，
+ * 因此在查询线程中调用、线程池已满时也不会互相等待。启用WAL时各线程的查询使用连接池中不同的只读连接并行执行，
+ * 否则在主连接上依次执行
+ * 
+ * @author lihx
+ * 
+ */
+public class PartitionedScan<A> {
+
+	private final DbUtils db;
+	private final Selector selector;
+	private final ScanCombiner<A> combiner;
+
+	public PartitionedScan(DbUtils db, Selector selector,
+			ScanCombiner<A> combiner) {
+		this.db = db;
+		this.selector = selector;
+		this.combiner = combiner;
+	}
+
+	/**
+	 * @param partitions
+	 *            分区数，一般取CPU核数
+	 * @return
+	 * @throws DbException
+	 */
+	public A execute(int partitions) throws DbException {
+		long[] bounds = getRowIdBounds();
+		if (bounds == null) {
+			return combiner.create();
+		}
+		List<Partition> parts = split(bounds[0], bounds[1],
+				Math.max(1, partitions));
+		for (int i = 1; i < parts.size(); i++) {
+			final Partition part = parts.get(i);
+			part.task = db.submit(new DbTask<A>() {
+
+				@Override
+				public A run(CancellationSignal signal) throws DbException {
+					return part.claim() ? scan(part.sql, signal) : null;
+				}
+			}, QueryTask.PRIORITY_NORMAL, null);
+		}
+		try {
+			A result = null;
+			for (Partition part : parts) {
+				A value;
+				if (part.claim()) {
+					// 还没有开始执行或被拒绝，由调用线程执行
+					value = scan(part.sql, null);
+				} else {
+					value = part.task.get();
+				}
+				result = result == null ? value : combiner
+						.combine(result, value);
+			}
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException(e.getMessage());
+		} catch (ExecutionException e) {
+			throw QueryTask.toDbException(e.getCause());
+		} finally {
+			for (Partition part : parts) {
+				if (part.task != null) {
+					part.task.cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 把[min, max]切成最多count段，每段包含两端；rowid可以为负数，差值超过long范围时也不会溢出
+	 */
+	private List<Partition> split(long min, long max, int count) {
+		List<Partition> parts = new ArrayList<Partition>(count);
+		long span = max - min;
+		if (count == 1 || span == 0) {
+			parts.add(new Partition(selector.getRangeSelectSql(min, max)));
+			return parts;
+		}
+		long step;
+		if (span < 0) {
+			// 差值溢出，两端各自先除再相减
+			step = max / count - min / count + 2;
+		} else {
+			if (span < count) {
+				count = (int) span + 1;
+			}
+			step = span / count + 1;
+		}
+		long from = min;
+		while (true) {
+			long end = from + (step - 1);
+			// 溢出或超过max时到max为止
+			long to = end < from || end >= max ? max : end;
+			parts.add(new Partition(selector.getRangeSelectSql(from, to)));
+			if (to == max) {
+				return parts;
+			}
+			from = to + 1;
+		}
+	}
+
+	private long[] getRowIdBounds() throws DbException {
+		Cursor cursor = db.execQuery("SELECT min(rowid), max(rowid) FROM "
+				+ selector.getTableName());
+		try {
+			if (cursor.moveToNext() && !cursor.isNull(0)) {
+				return new long[] { cursor.getLong(0), cursor.getLong(1) };
+			}
+			return null;
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+	}
+
+	private A scan(String sql, CancellationSignal signal) throws DbException {
+		Cursor cursor = db.execQuery(sql, signal);
+		try {
+			A result = combiner.create();
+			while (cursor.moveToNext()) {
+				combiner.accumulate(result, cursor);
+			}
+			return result;
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+	}
+
+	/**
+	 * 一个分区，由线程池或调用线程中先claim的一方执行
+	 */
+	private class Partition {
+		final String sql;
+		final AtomicBoolean claimed = new AtomicBoolean();
+		QueryTask<A> task;
+
+		Partition(String sql) {
+			this.sql = sql;
+		}
+
+		boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+	}
+}
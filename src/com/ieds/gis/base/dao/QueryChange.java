@@ -0,0 +1,57 @@
+package com.ieds.gis.base.dao;
+
+import java.util.List;
+
+/**
+ * 观察查询的一次结果变化，按主键比较前后两次结果
+ * 
+ * @author lihx
+ * 
+ */
+public class QueryChange<T> {
+
+	private final List<T> result;
+	private final List<T> added;
+	private final List<T> removed;
+	private final List<T> changed;
+
+	public QueryChange(List<T> result, List<T> added, List<T> removed,
+			List<T> changed) {
+		this.result = result;
+		this.added = added;
+		this.removed = removed;
+		this.changed = changed;
+	}
+
+	/**
+	 * 完整的新结果
+	 */
+	public List<T> getResult() {
+		return result;
+	}
+
+	/**
+	 * 新增的行
+	 */
+	public List<T> getAdded() {
+		return added;
+	}
+
+	/**
+	 * 删除的行，为上一次结果中的对象
+	 */
+	public List<T> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * 主键相同但内容变化的行，为新结果中的对象
+	 */
+	public List<T> getChanged() {
+		return changed;
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+	}
+}
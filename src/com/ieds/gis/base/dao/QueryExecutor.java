@@ -0,0 +1,75 @@
+package com.ieds.gis.base.dao;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 数据库后台查询线程池，线程数和排队数都有上限，按QueryTask优先级出队，结果回到主线程
+ * 
+ * @author lihx
+ * 
+ */
+public class QueryExecutor {
+
+	public static final String QUEUE_FULL = "数据库查询队列已满";
+
+	private static final int THREAD_COUNT = 2;
+	private static final int MAX_PENDING = 64;
+
+	private final ThreadPoolExecutor executor;
+	private final Handler handler;
+
+	public QueryExecutor() {
+		this(THREAD_COUNT);
+	}
+
+	public QueryExecutor(int threadCount) {
+		this.handler = new Handler(Looper.getMainLooper());
+		this.executor = new ThreadPoolExecutor(threadCount, threadCount, 30,
+				TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+				new DbThreadFactory());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	public <T> QueryTask<T> submit(DbTask<T> task, int priority,
+			DbCallback<T> callback) {
+		QueryTask<T> queryTask = new QueryTask<T>(task, priority, callback,
+				handler);
+		if (executor.getQueue().size() >= MAX_PENDING) {
+			queryTask.reject(new DbException(QUEUE_FULL));
+		} else {
+			executor.execute(queryTask);
+		}
+		return queryTask;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static class DbThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "DbQuery #" + count.getAndIncrement());
+			return t;
+		}
+	}
+}
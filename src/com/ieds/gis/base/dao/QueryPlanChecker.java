@@ -0,0 +1,69 @@
+package com.ieds.gis.base.dao;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
+
+/**
+ * 开发模式下检查查询计划，每种查询形式(去掉参数值后的sql)只检查一次，带条件的查询出现全表扫描时打印警告
+ * 
+ * @author lihx
+ * 
+ */
+public class QueryPlanChecker {
+
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+	private static final Pattern NUMBER_LITERAL = Pattern
+			.compile("\\b\\d+(\\.\\d+)?\\b");
+	private static final Pattern WHERE = Pattern.compile("\\bWHERE\\b",
+			Pattern.CASE_INSENSITIVE);
+
+	private final Set<String> checked = new HashSet<String>();
+
+	/**
+	 * @param db
+	 * @param sql
+	 * @return 是否有全表扫描，已检查过的查询形式返回false
+	 */
+	public boolean check(SQLiteDatabase db, String sql) {
+		if (!WHERE.matcher(sql).find()) {
+			return false;
+		}
+		String shape = getShape(sql);
+		synchronized (checked) {
+			if (!checked.add(shape)) {
+				return false;
+			}
+		}
+		boolean fullScan = false;
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+			int detailIndex = cursor.getColumnIndex("detail");
+			while (cursor.moveToNext()) {
+				String detail = cursor.getString(detailIndex);
+				if (detail != null && detail.startsWith("SCAN ")
+						&& !detail.contains(" INDEX ")) {
+					fullScan = true;
+					LogUtils.w("全表扫描: " + detail + "\nsql=(" + shape + ")");
+				}
+			}
+		} catch (Exception e) {
+			LogUtils.w("EXPLAIN QUERY PLAN失败: " + e.getMessage());
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		return fullScan;
+	}
+
+	static String getShape(String sql) {
+		String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+		return NUMBER_LITERAL.matcher(shape).replaceAll("?");
+	}
+}
@@ -0,0 +1,249 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+
+import com.lidroid.xutils.db.table.MyId;
+import com.lidroid.xutils.db.table.MyTable;
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 观察查询，查询涉及的表被写入后重新查询，只有结果变化时才回调
+ * 
+ * 按DEBOUNCE_MS去抖(后沿触发)：最后一次写入后DEBOUNCE_MS内没有新的写入才查询，一批连续写入只查询一次；
+ * 持续写入时最迟在第一次写入后MAX_WAIT_MS查询，不会一直推迟。
+ * 查询和比较在后台线程执行，结果由创建时指定的Executor回调
+ * 
+ * @author lihx
+ * 
+ */
+public class QuerySubscription<T> implements TableChangeListener {
+
+	public static final long DEBOUNCE_MS = 100;
+	public static final long MAX_WAIT_MS = 1000;
+
+	private final DbUtils db;
+	private final Selector selector;
+	private final DbCallback<QueryChange<T>> callback;
+	private final ScheduledExecutorService scheduler;
+	private final Executor callbackExecutor;
+	private final Set<String> tables = new HashSet<String>();
+	private final Field[] fields;
+	private final List<MyId> idList;
+
+	private Map<String, Object[]> last;
+	private Map<String, T> lastEntities;
+	private ScheduledFuture<?> pending;
+	/** 还没有查询的第一次写入时间，没有时为0 */
+	private long firstChange;
+	private volatile boolean active = true;
+
+	private final Runnable refreshTask = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (QuerySubscription.this) {
+				pending = null;
+				firstChange = 0;
+			}
+			refresh();
+		}
+	};
+
+	QuerySubscription(DbUtils db, Selector selector,
+			DbCallback<QueryChange<T>> callback,
+			ScheduledExecutorService scheduler, Executor callbackExecutor)
+			throws DbException {
+		this.db = db;
+		this.selector = selector;
+		this.callback = callback;
+		this.scheduler = scheduler;
+		this.callbackExecutor = callbackExecutor;
+		this.tables.add(selector.getTableName());
+		Class<?> entityType = selector.getEntityType();
+		if (selector.getFetchList() != null) {
+			for (String name : selector.getFetchList()) {
+				try {
+					tables.add(MyTable.get(
+							entityType.getDeclaredField(name).getType())
+							.getTableName());
+				} catch (NoSuchFieldException e) {
+					throw new DbException("字段[" + entityType.getSimpleName()
+							+ "." + name + "]不存在");
+				}
+			}
+		}
+		this.idList = MyTable.get(entityType).getId();
+		List<Field> list = new ArrayList<Field>();
+		for (Field f : entityType.getDeclaredFields()) {
+			if (Modifier.isStatic(f.getModifiers()) || f.isSynthetic()
+					|| f.getAnnotation(Relation.class) != null) {
+				continue;
+			}
+			f.setAccessible(true);
+			list.add(f);
+		}
+		this.fields = list.toArray(new Field[list.size()]);
+	}
+
+	void start() {
+		db.addTableChangeListener(this);
+		synchronized (this) {
+			pending = scheduler.schedule(refreshTask, 0,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void unsubscribe() {
+		active = false;
+		db.removeTableChangeListener(this);
+		synchronized (this) {
+			if (pending != null) {
+				pending.cancel(false);
+				pending = null;
+			}
+		}
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	@Override
+	public void onTableChanged(String tableName, int rows) {
+		if (active && tables.contains(tableName)) {
+			debounce();
+		}
+	}
+
+	/**
+	 * 每次写入都重新计时，最多推迟到第一次写入后MAX_WAIT_MS
+	 */
+	private synchronized void debounce() {
+		long now = SystemClock.uptimeMillis();
+		if (firstChange == 0) {
+			firstChange = now;
+		}
+		if (pending != null) {
+			pending.cancel(false);
+		}
+		long delay = Math.max(0,
+				Math.min(DEBOUNCE_MS, firstChange + MAX_WAIT_MS - now));
+		pending = scheduler.schedule(refreshTask, delay,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void refresh() {
+		if (!active) {
+			return;
+		}
+		try {
+			List<T> result = db.findAll(selector);
+			final QueryChange<T> change = diff(result);
+			if (last != null && change.isEmpty()) {
+				return;
+			}
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					if (active) {
+						callback.onSuccess(change);
+					}
+				}
+			});
+		} catch (final Exception e) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					if (active) {
+						callback.onFailure(QueryTask.toDbException(e));
+					}
+				}
+			});
+		}
+	}
+
+	private void post(Runnable r) {
+		callbackExecutor.execute(r);
+	}
+
+	private QueryChange<T> diff(List<T> result) throws DbException {
+		Map<String, Object[]> current = new LinkedHashMap<String, Object[]>();
+		Map<String, T> currentEntities = new LinkedHashMap<String, T>();
+		List<T> added = new ArrayList<T>();
+		List<T> changed = new ArrayList<T>();
+		List<T> removed = new ArrayList<T>();
+		int index = 0;
+		for (T entity : result) {
+			String key = getKey(entity, index++);
+			Object[] values = getValues(entity);
+			current.put(key, values);
+			currentEntities.put(key, entity);
+			Object[] previous = last == null ? null : last.get(key);
+			if (previous == null) {
+				added.add(entity);
+			} else if (!equals(previous, values)) {
+				changed.add(entity);
+			}
+		}
+		if (last != null) {
+			for (Map.Entry<String, T> e : lastEntities.entrySet()) {
+				if (!current.containsKey(e.getKey())) {
+					removed.add(e.getValue());
+				}
+			}
+		}
+		last = current;
+		lastEntities = currentEntities;
+		return new QueryChange<T>(result, added, removed, changed);
+	}
+
+	/**
+	 * 主键值，没有主键时按位置比较
+	 */
+	private String getKey(Object entity, int index) {
+		if (idList == null || idList.isEmpty()) {
+			return "#" + index;
+		}
+		StringBuilder key = new StringBuilder();
+		for (MyId id : idList) {
+			key.append(id.getColumnValue(entity)).append('\u0000');
+		}
+		return key.toString();
+	}
+
+	private Object[] getValues(Object entity) throws DbException {
+		Object[] values = new Object[fields.length];
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				values[i] = fields[i].get(entity);
+			}
+		} catch (IllegalAccessException e) {
+			throw new DbException(e.getMessage());
+		}
+		return values;
+	}
+
+	private static boolean equals(Object[] a, Object[] b) {
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == null ? b[i] != null : !a[i].equals(b[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
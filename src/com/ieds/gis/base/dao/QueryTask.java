@@ -0,0 +1,136 @@
+package com.ieds.gis.base.dao;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 可取消的异步数据库任务，优先级高的先执行，同优先级按提交顺序执行
+ * 
+ * 取消时同时触发SQLite的CancellationSignal，正在执行的查询会被中断
+ * 
+ * @author lihx
+ * 
+ */
+public class QueryTask<T> extends FutureTask<T> implements
+		Comparable<QueryTask<?>> {
+
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 5;
+	public static final int PRIORITY_HIGH = 10;
+
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private final int priority;
+	private final long sequence;
+	private final CancellationSignal signal;
+	private final DbCallback<T> callback;
+	private final Handler handler;
+
+	QueryTask(final DbTask<T> task, int priority, DbCallback<T> callback,
+			Handler handler) {
+		this(task, newSignal(), priority, callback, handler);
+	}
+
+	private QueryTask(final DbTask<T> task, final CancellationSignal signal,
+			int priority, DbCallback<T> callback, Handler handler) {
+		super(new Callable<T>() {
+
+			@Override
+			public T call() throws Exception {
+				return task.run(signal);
+			}
+		});
+		this.signal = signal;
+		this.priority = priority;
+		this.sequence = SEQUENCE.getAndIncrement();
+		this.callback = callback;
+		this.handler = handler;
+	}
+
+	private static CancellationSignal newSignal() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return new CancellationSignal();
+		}
+		return null;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean cancelled = super.cancel(mayInterruptIfRunning);
+		if (cancelled && signal != null) {
+			signal.cancel();
+		}
+		return cancelled;
+	}
+
+	@Override
+	protected void done() {
+		if (callback == null) {
+			return;
+		}
+		handler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				deliver();
+			}
+		});
+	}
+
+	private void deliver() {
+		if (isCancelled()) {
+			callback.onCancelled();
+			return;
+		}
+		T result;
+		try {
+			result = get();
+		} catch (CancellationException e) {
+			callback.onCancelled();
+			return;
+		} catch (InterruptedException e) {
+			callback.onCancelled();
+			return;
+		} catch (ExecutionException e) {
+			callback.onFailure(toDbException(e.getCause()));
+			return;
+		}
+		callback.onSuccess(result);
+	}
+
+	/**
+	 * 直接失败，不进入执行队列
+	 */
+	void reject(final DbException e) {
+		setException(e);
+	}
+
+	static DbException toDbException(Throwable t) {
+		if (t instanceof DbException) {
+			return (DbException) t;
+		}
+		return new DbException(t == null ? null : t.getMessage());
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	@Override
+	public int compareTo(QueryTask<?> another) {
+		if (priority != another.priority) {
+			return priority > another.priority ? -1 : 1;
+		}
+		return sequence < another.sequence ? -1
+				: (sequence == another.sequence ? 0 : 1);
+	}
+}
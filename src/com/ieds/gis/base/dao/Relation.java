@@ -0,0 +1,29 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 多对一关联，字段类型为关联的po类，不对应数据库列
+ * 
+ * 查询时用Selector.fetch(字段名)批量加载：每个关联对本页所有外键值执行一次IN查询，再赋值给各条数据
+ * 
+ * @author lihx
+ * 
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Relation {
+
+	/**
+	 * 本表的外键列，如"line_id"
+	 */
+	String foreignKey();
+
+	/**
+	 * 关联表中被引用的列，默认为关联表的主键
+	 */
+	String references() default "";
+}
@@ -0,0 +1,140 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.lidroid.xutils.db.sqlite.WhereBuilder;
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 批量加载Relation关联，避免逐条findFirstById产生N+1次查询
+ * 
+ * @author lihx
+ * 
+ */
+public class RelationLoader {
+
+	/**
+	 * 每次IN查询的参数个数，低于SQLite默认的999个变量上限
+	 */
+	public static final int CHUNK_SIZE = 500;
+
+	private final DbUtils db;
+
+	public RelationLoader(DbUtils db) {
+		this.db = db;
+	}
+
+	/**
+	 * @param entities
+	 *            同一个po类的数据
+	 * @param relations
+	 *            Relation注解的字段名
+	 * @throws DbException
+	 */
+	public void load(List<?> entities, List<String> relations)
+			throws DbException {
+		if (entities == null || entities.isEmpty() || relations == null) {
+			return;
+		}
+		Class<?> entityType = entities.get(0).getClass();
+		for (String name : relations) {
+			load(entities, getRelationField(entityType, name));
+		}
+	}
+
+	private void load(List<?> entities, Field field) throws DbException {
+		Relation relation = field.getAnnotation(Relation.class);
+		Class<?> targetType = field.getType();
+		Field foreignKey = getField(entities.get(0).getClass(),
+				relation.foreignKey());
+		String references = relation.references();
+		if (references.length() == 0) {
+			List<String> ids = EntitySchema.getIdColumns(targetType);
+			if (ids.size() != 1) {
+				throw new DbException("关联[" + field.getName()
+						+ "]的目标表需要单列主键或指定references");
+			}
+			references = ids.get(0);
+		}
+		Field referenced = getField(targetType, references);
+
+		Set<Object> keys = new LinkedHashSet<Object>();
+		for (Object entity : entities) {
+			Object key = get(foreignKey, entity);
+			if (key != null) {
+				keys.add(key);
+			}
+		}
+		Map<Object, Object> targets = new HashMap<Object, Object>();
+		List<Object> chunk = new ArrayList<Object>(CHUNK_SIZE);
+		for (Object key : keys) {
+			chunk.add(key);
+			if (chunk.size() == CHUNK_SIZE) {
+				query(targetType, references, referenced, chunk, targets);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			query(targetType, references, referenced, chunk, targets);
+		}
+		for (Object entity : entities) {
+			Object key = get(foreignKey, entity);
+			set(field, entity, key == null ? null : targets.get(key));
+		}
+	}
+
+	private void query(Class<?> targetType, String column, Field referenced,
+			List<Object> keys, Map<Object, Object> targets) throws DbException {
+		Selector selector = Selector.from(targetType).where(
+				WhereBuilder.b(column, "in", keys));
+		List<Object> rows = db.findAll(selector);
+		for (Object row : rows) {
+			targets.put(get(referenced, row), row);
+		}
+	}
+
+	private static Field getRelationField(Class<?> entityType, String name)
+			throws DbException {
+		Field field = getField(entityType, name);
+		if (field.getAnnotation(Relation.class) == null) {
+			throw new DbException("字段[" + entityType.getSimpleName() + "."
+					+ name + "]没有Relation注解");
+		}
+		return field;
+	}
+
+	private static Field getField(Class<?> type, String name)
+			throws DbException {
+		try {
+			Field field = type.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new DbException("字段[" + type.getSimpleName() + "." + name
+					+ "]不存在");
+		}
+	}
+
+	private static Object get(Field field, Object entity) throws DbException {
+		try {
+			return field.get(entity);
+		} catch (IllegalAccessException e) {
+			throw new DbException(e.getMessage());
+		}
+	}
+
+	private static void set(Field field, Object entity, Object value)
+			throws DbException {
+		try {
+			field.set(entity, value);
+		} catch (IllegalAccessException e) {
+			throw new DbException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.ieds.gis.base.dao;
+
+import android.database.Cursor;
+
+/**
+ * 分区扫描的聚合器，每个分区在自己的线程中创建并累加一个结果，最后两两合并
+ * 
+ * @author lihx
+ * 
+ */
+public interface ScanCombiner<A> {
+
+	/**
+	 * 创建一个分区的初始结果
+	 */
+	public A create();
+
+	/**
+	 * 累加游标当前行，按列下标读取，列顺序与Selector.getColumnSql()一致
+	 */
+	public void accumulate(A result, Cursor cursor);
+
+	/**
+	 * 合并两个分区的结果
+	 */
+	public A combine(A left, A right);
+}
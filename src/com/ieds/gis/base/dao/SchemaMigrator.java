@@ -0,0 +1,417 @@
+package com.ieds.gis.base.dao;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
+
+/**
+ * 增量升级
+ * 
+ * 先按版本号依次执行注册的Migration，再把注册的po类与sqlite_master中的表结构比较：
+ * 缺少的表直接创建，新增的列用ALTER TABLE ADD COLUMN原地添加，删除列、主键或列类型变化时重建表，
+ * 重建时用INSERT ... SELECT整体拷贝数据，拷贝完成后再创建索引和全文检索表
+ * 
+ * @author lihx
+ * 
+ */
+public class SchemaMigrator {
+
+	private static final String OLD_SUFFIX = "__old";
+
+	private final List<Migration> migrations = new ArrayList<Migration>();
+	private final List<Class<?>> entities = new ArrayList<Class<?>>();
+	private final List<SummaryTable> summaries = new ArrayList<SummaryTable>();
+	private MigrationListener listener;
+
+	public SchemaMigrator add(Migration migration) {
+		migrations.add(migration);
+		return this;
+	}
+
+	/**
+	 * 升级后按po类同步表结构
+	 * 
+	 * @param entityType
+	 * @return
+	 */
+	public SchemaMigrator addEntity(Class<?> entityType) {
+		entities.add(entityType);
+		return this;
+	}
+
+	public List<Class<?>> getEntities() {
+		return entities;
+	}
+
+	/**
+	 * 升级和建表后创建汇总表，定义变化时重建
+	 * 
+	 * @param summary
+	 * @return
+	 */
+	public SchemaMigrator addSummary(SummaryTable summary) {
+		summaries.add(summary);
+		return this;
+	}
+
+	public List<SummaryTable> getSummaries() {
+		return summaries;
+	}
+
+	/**
+	 * @param name
+	 * @return 没有注册时为null
+	 */
+	public SummaryTable getSummary(String name) {
+		for (SummaryTable summary : summaries) {
+			if (summary.getName().equals(name)) {
+				return summary;
+			}
+		}
+		return null;
+	}
+
+	public SchemaMigrator setListener(MigrationListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * 在升级事务中调用
+	 * 
+	 * @param db
+	 * @param oldVersion
+	 * @param newVersion
+	 * @throws DbException
+	 */
+	public void migrate(SQLiteDatabase db, int oldVersion, int newVersion)
+			throws DbException {
+		List<Migration> steps = new ArrayList<Migration>();
+		for (int v = oldVersion + 1; v <= newVersion; v++) {
+			for (Migration m : migrations) {
+				if (m.getVersion() == v) {
+					steps.add(m);
+				}
+			}
+		}
+		int total = steps.size() + entities.size();
+		int step = 0;
+		for (Migration m : steps) {
+			long start = SystemClock.uptimeMillis();
+			m.migrate(db);
+			report(m.getVersion() + ":" + m.getName(), ++step, total, start);
+		}
+		syncEntities(db, step, total);
+	}
+
+	/**
+	 * 新建数据库时调用，为注册的po类建表，再创建注解声明的索引、全文检索表和汇总表，已存在的跳过
+	 * 
+	 * @param db
+	 * @throws DbException
+	 */
+	public void createSchema(SQLiteDatabase db) throws DbException {
+		syncEntities(db, 0, entities.size());
+	}
+
+	/**
+	 * 先同步表结构，索引、全文检索表和汇总表都依赖原表存在
+	 */
+	private void syncEntities(SQLiteDatabase db, int step, int total)
+			throws DbException {
+		for (Class<?> entityType : entities) {
+			long start = SystemClock.uptimeMillis();
+			syncTable(db, entityType);
+			createIndexes(db, entityType);
+			FullTextSchema.ensure(db, entityType);
+			report(entityType.getSimpleName(), ++step, total, start);
+		}
+		// 重建表时触发器随原表删除，在表结构同步之后创建
+		for (SummaryTable summary : summaries) {
+			summary.ensure(db);
+		}
+	}
+
+	public void createIndexes(SQLiteDatabase db, Class<?> entityType)
+			throws DbException {
+		for (String sql : EntitySchema.getCreateIndexSql(entityType)) {
+			try {
+				LogUtils.d(sql);
+				db.execSQL(sql);
+			} catch (SQLiteException e) {
+				// 索引只影响性能，表结构不匹配时不阻止数据库打开
+				LogUtils.w("create index failed: " + sql + " "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	private void report(String name, int step, int total, long start) {
+		long millis = SystemClock.uptimeMillis() - start;
+		LogUtils.d("migrate " + name + " " + millis + "ms (" + step + "/"
+				+ total + ")");
+		if (listener != null) {
+			listener.onStep(name, step, total, millis);
+		}
+	}
+
+	/**
+	 * 比较po类与数据库中的表结构，创建缺少的表、添加缺少的列，无法原地修改时重建表
+	 * 
+	 * @param db
+	 * @param entityType
+	 * @throws DbException
+	 */
+	public void syncTable(SQLiteDatabase db, Class<?> entityType)
+			throws DbException {
+		String tableName = EntitySchema.getTableName(entityType);
+		Map<String, Integer> existing = getTableInfo(db, tableName);
+		if (existing.isEmpty()) {
+			exec(db, EntitySchema.getCreateTableSql(entityType));
+			return;
+		}
+		LinkedHashMap<String, String> columns = EntitySchema
+				.getColumns(entityType);
+		List<String> ids = EntitySchema.getIdColumns(entityType);
+		boolean rebuild = false;
+		for (Map.Entry<String, Integer> e : existing.entrySet()) {
+			// 旧版本SQLite的pk只区分0和1，不比较主键内的顺序
+			boolean pk = e.getValue() > 0;
+			if (!columns.containsKey(e.getKey())
+					|| pk != ids.contains(e.getKey())) {
+				rebuild = true;
+				break;
+			}
+		}
+		if (!rebuild) {
+			// 声明类型的亲和性变化(如Date由TEXT改为INTEGER)时重建并转换数据
+			Map<String, String> types = getColumnTypes(db, tableName);
+			for (Map.Entry<String, String> column : columns.entrySet()) {
+				String type = types.get(column.getKey());
+				if (type != null
+						&& !getAffinity(type).equals(
+								getAffinity(column.getValue()))) {
+					rebuild = true;
+					break;
+				}
+			}
+		}
+		if (rebuild) {
+			rebuildTable(db, entityType);
+			return;
+		}
+		for (Map.Entry<String, String> column : columns.entrySet()) {
+			if (!existing.containsKey(column.getKey())) {
+				exec(db, "ALTER TABLE " + tableName + " ADD COLUMN "
+						+ column.getKey() + " " + column.getValue());
+			}
+		}
+	}
+
+	/**
+	 * 按po类重建表，保留两边都有的列的数据，重建后恢复原有索引
+	 * 
+	 * @param db
+	 * @param entityType
+	 * @throws DbException
+	 */
+	public void rebuildTable(SQLiteDatabase db, Class<?> entityType)
+			throws DbException {
+		String tableName = EntitySchema.getTableName(entityType);
+		String oldName = tableName + OLD_SUFFIX;
+		List<String> indexSql = getIndexSql(db, tableName);
+		Map<String, Integer> existing = getTableInfo(db, tableName);
+
+		exec(db, "ALTER TABLE " + tableName + " RENAME TO " + oldName);
+		exec(db, EntitySchema.getCreateTableSql(entityType));
+
+		StringBuilder common = new StringBuilder();
+		StringBuilder select = new StringBuilder();
+		for (String column : EntitySchema.getColumns(entityType).keySet()) {
+			if (existing.containsKey(column)) {
+				if (common.length() > 0) {
+					common.append(",");
+					select.append(",");
+				}
+				common.append(column);
+				select.append(getCopyExpression(entityType, column));
+				if (isConvertedDate(entityType, column)) {
+					warnUnparsedDates(db, oldName, column);
+				}
+			}
+		}
+		if (common.length() > 0) {
+			exec(db, "INSERT INTO " + tableName + " (" + common + ") SELECT "
+					+ select + " FROM " + oldName);
+		}
+		exec(db, "DROP TABLE " + oldName);
+		for (String sql : indexSql) {
+			try {
+				db.execSQL(sql);
+			} catch (SQLiteException e) {
+				// 索引引用的列已删除
+				LogUtils.w("skip index: " + sql + " " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @param db
+	 * @param tableName
+	 * @return 列名与主键序号(非主键为0)，表不存在时为空
+	 */
+	public static Map<String, Integer> getTableInfo(SQLiteDatabase db,
+			String tableName) {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")",
+				null);
+		try {
+			int nameIndex = cursor.getColumnIndex("name");
+			int pkIndex = cursor.getColumnIndex("pk");
+			while (cursor.moveToNext()) {
+				result.put(cursor.getString(nameIndex), cursor.getInt(pkIndex));
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		return result;
+	}
+
+	/**
+	 * 拷贝数据时的列表达式，文本格式的日期转换为毫秒数，无法解析的文本保留原值不丢数据，其他列由新表的列亲和性自动转换
+	 * 
+	 * 文本日期是本地时间，用'utc'修饰符转换后再取秒数；无法解析的值变为NULL
+	 */
+	private static String getCopyExpression(Class<?> entityType, String column) {
+		if (!isConvertedDate(entityType, column)) {
+			return column;
+		}
+		return "CASE WHEN typeof(" + column + ")<>'text' THEN " + column
+				+ " WHEN " + getDigitsCondition(column) + " THEN CAST("
+				+ column + " AS INTEGER) WHEN " + getSecondsExpression(column)
+				+ " IS NOT NULL THEN CAST(" + getSecondsExpression(column)
+				+ " AS INTEGER)*1000 ELSE " + column + " END";
+	}
+
+	private static boolean isConvertedDate(Class<?> entityType, String column) {
+		Class<?> type;
+		try {
+			type = entityType.getDeclaredField(column).getType();
+		} catch (NoSuchFieldException e) {
+			return false;
+		}
+		return Date.class.isAssignableFrom(type)
+				&& "INTEGER".equals(EntitySchema.getDbType(type));
+	}
+
+	private static String getDigitsCondition(String column) {
+		return column + " GLOB '[0-9]*' AND " + column
+				+ " NOT GLOB '*[^0-9]*'";
+	}
+
+	private static String getSecondsExpression(String column) {
+		return "strftime('%s'," + column + ",'utc')";
+	}
+
+	/**
+	 * 拷贝前记录无法解析、将按原文本保留的日期
+	 */
+	private static void warnUnparsedDates(SQLiteDatabase db, String tableName,
+			String column) {
+		Cursor cursor = db.rawQuery("SELECT count(*), min(" + column
+				+ ") FROM " + tableName + " WHERE typeof(" + column
+				+ ")='text' AND NOT (" + getDigitsCondition(column) + ") AND "
+				+ getSecondsExpression(column) + " IS NULL", null);
+		try {
+			if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+				LogUtils.w(tableName + "." + column + "有" + cursor.getInt(0)
+						+ "行日期无法解析，保留原文本，例如：" + cursor.getString(1));
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+	}
+
+	/**
+	 * @param db
+	 * @param tableName
+	 * @return 列名与声明类型
+	 */
+	public static Map<String, String> getColumnTypes(SQLiteDatabase db,
+			String tableName) {
+		Map<String, String> result = new HashMap<String, String>();
+		Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")",
+				null);
+		try {
+			int nameIndex = cursor.getColumnIndex("name");
+			int typeIndex = cursor.getColumnIndex("type");
+			while (cursor.moveToNext()) {
+				result.put(cursor.getString(nameIndex),
+						cursor.getString(typeIndex));
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		return result;
+	}
+
+	/**
+	 * SQLite的列亲和性规则
+	 */
+	static String getAffinity(String declaredType) {
+		String type = declaredType == null ? "" : declaredType.toUpperCase();
+		if (type.contains("INT")) {
+			return "INTEGER";
+		}
+		if (type.contains("CHAR") || type.contains("CLOB")
+				|| type.contains("TEXT")) {
+			return "TEXT";
+		}
+		if (type.length() == 0 || type.contains("BLOB")) {
+			return "BLOB";
+		}
+		if (type.contains("REAL") || type.contains("FLOA")
+				|| type.contains("DOUB")) {
+			return "REAL";
+		}
+		return "NUMERIC";
+	}
+
+	private static List<String> getIndexSql(SQLiteDatabase db, String tableName) {
+		List<String> result = new ArrayList<String>();
+		Cursor cursor = db.rawQuery(
+				"SELECT sql FROM sqlite_master WHERE type='index'"
+						+ " AND tbl_name=? AND sql IS NOT NULL",
+				new String[] { tableName });
+		try {
+			while (cursor.moveToNext()) {
+				result.add(cursor.getString(0));
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		return result;
+	}
+
+	private static void exec(SQLiteDatabase db, String sql) throws DbException {
+		LogUtils.d(sql);
+		try {
+			db.execSQL(sql);
+		} catch (SQLiteException e) {
+			throw new DbException("异常原因：" + e.getMessage() + "\n异常语句：sql=("
+					+ sql + ")");
+		}
+	}
+}
@@ -29,6 +29,8 @@ import com.lidroid.xutils.util.StringUtil;
  */
 public class Selector implements ISelector {
 
+	public static final String SNIPPET_COLUMN = "fts_snippet";
+
 	protected Class<?> entityType;
 	protected String tableName;
 
@@ -37,6 +39,12 @@ public class Selector implements ISelector {
 	protected int limit = 0;
 	protected int offset = 0;
 
+	protected String matchQuery;
+	protected boolean orderByRank;
+	protected boolean snippet;
+	protected List<String> fetchList;
+	protected boolean trackChanges;
+
 	public WhereBuilder getWhereBuilder() {
 		return whereBuilder;
 	}
@@ -50,26 +58,68 @@ public class Selector implements ISelector {
 		return new Selector(entityType);
 	}
 
+	/**
+	 * @return 条件和排序相同的新Selector，修改它不影响原来的
+	 * @throws DbException
+	 */
+	Selector copy() throws DbException {
+		Selector copy = new Selector(entityType);
+		copy.whereBuilder = whereBuilder;
+		copy.orderByList = orderByList == null ? null : new ArrayList<OrderBy>(
+				orderByList);
+		copy.limit = limit;
+		copy.offset = offset;
+		copy.matchQuery = matchQuery;
+		copy.orderByRank = orderByRank;
+		copy.snippet = snippet;
+		copy.fetchList = fetchList == null ? null : new ArrayList<String>(
+				fetchList);
+		copy.trackChanges = trackChanges;
+		return copy;
+	}
+
 	public Selector where(WhereBuilder whereBuilder) {
 		this.whereBuilder = whereBuilder;
 		return this;
 	}
 
+	/**
+	 * 条件值按原生类型写入，Date按毫秒数比较，可以使用索引范围扫描
+	 * 
+	 * @param columnName
+	 * @param op
+	 * @param value
+	 * @return
+	 */
 	public Selector where(String columnName, String op, Object value) {
-		this.whereBuilder = WhereBuilder.b(columnName, op, value);
+		this.whereBuilder = WhereBuilder.b(columnName, op, toDbValue(value));
 		return this;
 	}
 
 	public Selector and(String columnName, String op, Object value) {
-		this.whereBuilder.append(columnName, op, value);
+		this.whereBuilder.append(columnName, op, toDbValue(value));
 		return this;
 	}
 
 	public Selector or(String columnName, String op, Object value) {
-		this.whereBuilder.appendOR(columnName, op, value);
+		this.whereBuilder.appendOR(columnName, op, toDbValue(value));
 		return this;
 	}
 
+	private static Object toDbValue(Object value) {
+		if (value instanceof Object[]) {
+			return TypeConverters.toDbValues((Object[]) value);
+		}
+		if (value instanceof Iterable) {
+			List<Object> result = new ArrayList<Object>();
+			for (Object o : (Iterable<?>) value) {
+				result.add(TypeConverters.toDbValue(o));
+			}
+			return result;
+		}
+		return TypeConverters.toDbValue(value);
+	}
+
 	public Selector orderBy(String columnName) {
 		if (orderByList == null) {
 			orderByList = new ArrayList<OrderBy>(2);
@@ -86,6 +136,79 @@ public class Selector implements ISelector {
 		return this;
 	}
 
+	/**
+	 * 全文检索，只检索FullText注解的列
+	 * 
+	 * @param query
+	 *            FTS查询语法，如"变压器 渗油"、"绝缘*"
+	 * @return
+	 */
+	public Selector match(String query) {
+		this.matchQuery = query;
+		return this;
+	}
+
+	/**
+	 * 全文检索结果按命中次数从多到少排序，排在其他排序条件之前
+	 * 
+	 * 命中次数是查询词在各列中出现的总次数，由offsets()的结果计算(每次命中4个整数)，不考虑词频权重
+	 * 
+	 * @return
+	 */
+	public Selector orderByRank() {
+		this.orderByRank = true;
+		return this;
+	}
+
+	/**
+	 * 全文检索结果附带命中片段，列名为SNIPPET_COLUMN
+	 * 
+	 * @return
+	 */
+	public Selector snippet() {
+		this.snippet = true;
+		return this;
+	}
+
+	/**
+	 * 查询后批量加载Relation关联，每个关联一次IN查询
+	 * 
+	 * @param relation
+	 *            Relation注解的字段名
+	 * @return
+	 */
+	public Selector fetch(String relation) {
+		if (fetchList == null) {
+			fetchList = new ArrayList<String>(2);
+		}
+		fetchList.add(relation);
+		return this;
+	}
+
+	public List<String> getFetchList() {
+		return fetchList;
+	}
+
+	/**
+	 * 记录查询出的对象的快照，之后对这些对象调用updateById时只更新修改过的列
+	 * 
+	 * 同一行被其他对象写入或按条件修改该表时快照失效，updateById回到更新全部列
+	 * 
+	 * @return
+	 */
+	public Selector trackChanges() {
+		this.trackChanges = true;
+		return this;
+	}
+
+	public boolean isTrackChanges() {
+		return trackChanges;
+	}
+
+	public String getMatchQuery() {
+		return matchQuery;
+	}
+
 	public Selector limit(int limit) {
 		this.limit = limit;
 		return this;
@@ -118,38 +241,165 @@ public class Selector implements ISelector {
 	// }
 
 	public String getSelectSql() {
-		StringBuilder fieldBuilder = new StringBuilder();
-
-		Field[] fs = entityType.getDeclaredFields();
-		for (Field f : fs) {
-			fieldBuilder.append(f.getName() + ",");
-		}
-		String fb = StringUtil.deleteLastCharacter(fieldBuilder);
+		String ftsName = FullTextSchema.getFtsTableName(tableName);
 		StringBuilder result = new StringBuilder();
 		result.append("SELECT ");
-		result.append(fb);
+		result.append(getColumnSql());
+		if (matchQuery != null && snippet) {
+			result.append(",snippet(").append(ftsName)
+					.append(",'<b>','</b>','...',-1,16) AS ")
+					.append(SNIPPET_COLUMN);
+		}
 		result.append(" FROM ").append(tableName);
-		if (whereBuilder != null) {
+		if (matchQuery != null) {
+			result.append(" JOIN ").append(ftsName).append(" ON ")
+					.append(ftsName).append(".docid=").append(tableName)
+					.append(".rowid WHERE ").append(ftsName)
+					.append(" MATCH ").append(quote(matchQuery));
+			if (whereBuilder != null) {
+				result.append(" AND (").append(whereBuilder.toString())
+						.append(")");
+			}
+		} else if (whereBuilder != null) {
 			result.append(" WHERE ").append(whereBuilder.toString());
 		}
+		if (matchQuery != null && orderByRank) {
+			result.append(" ORDER BY ").append(getMatchCountSql(ftsName))
+					.append(" DESC");
+			if (orderByList != null) {
+				for (int i = 0; i < orderByList.size(); i++) {
+					result.append(",").append(orderByList.get(i).toString());
+				}
+			}
+		} else if (orderByList != null) {
+			result.append(getOrderBySql());
+		}
+		result.append(getLimitSql());
+		return result.toString();
+	}
+
+	/**
+	 * offsets()返回"列 词 偏移 长度"四个整数一组、空格分隔的命中列表，命中次数为整数个数除以4
+	 */
+	private static String getMatchCountSql(String ftsName) {
+		String offsets = "offsets(" + ftsName + ")";
+		return "((length(" + offsets + ")-length(replace(" + offsets
+				+ ",' ',''))+1)/4)";
+	}
+
+	/**
+	 * @return " ORDER BY ..."，没有排序时为空字符串
+	 */
+	public String getOrderBySql() {
+		StringBuilder result = new StringBuilder();
 		if (orderByList != null) {
 			for (int i = 0; i < orderByList.size(); i++) {
-				result.append(" ORDER BY ").append(
+				result.append(i == 0 ? " ORDER BY " : ",").append(
 						orderByList.get(i).toString());
 			}
 		}
+		return result.toString();
+	}
+
+	/**
+	 * @return " LIMIT ... OFFSET ..."，没有分页时为空字符串
+	 */
+	public String getLimitSql() {
 		if (limit > 0) {
-			result.append(" LIMIT ").append(limit);
-			result.append(" OFFSET ").append(offset);
+			return " LIMIT " + limit + " OFFSET " + offset;
+		}
+		return "";
+	}
+
+	/**
+	 * 查询指定的表(如附加数据库中的同名表)，不带排序和分页
+	 * 
+	 * @param qualifiedTableName
+	 * @return
+	 */
+	public String getSelectSql(String qualifiedTableName) {
+		StringBuilder result = new StringBuilder();
+		result.append("SELECT ");
+		result.append(getColumnSql());
+		result.append(" FROM ").append(qualifiedTableName);
+		if (whereBuilder != null) {
+			result.append(" WHERE ").append(whereBuilder.toString());
 		}
 		return result.toString();
 	}
 
+	public List<OrderBy> getOrderByList() {
+		return orderByList;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * 按rowid范围查询，用于分区扫描，不带排序和分页
+	 * 
+	 * @param fromRowId
+	 *            包含
+	 * @param toRowId
+	 *            包含，可以是Long.MAX_VALUE
+	 * @return
+	 */
+	public String getRangeSelectSql(long fromRowId, long toRowId) {
+		StringBuilder result = new StringBuilder();
+		result.append("SELECT ");
+		result.append(getColumnSql());
+		result.append(" FROM ").append(tableName);
+		result.append(" WHERE rowid >= ").append(fromRowId);
+		result.append(" AND rowid <= ").append(toRowId);
+		if (whereBuilder != null) {
+			result.append(" AND (").append(whereBuilder.toString())
+					.append(")");
+		}
+		if (matchQuery != null) {
+			String ftsName = FullTextSchema.getFtsTableName(tableName);
+			result.append(" AND rowid IN (SELECT docid FROM ").append(ftsName)
+					.append(" WHERE ").append(ftsName).append(" MATCH ")
+					.append(quote(matchQuery)).append(")");
+		}
+		return result.toString();
+	}
+
+	private static String quote(String value) {
+		return "'" + value.replace("'", "''") + "'";
+	}
+
+	/**
+	 * 查询列，与实体的字段对应
+	 * 
+	 * @return
+	 */
+	public String getColumnSql() {
+		StringBuilder fieldBuilder = new StringBuilder();
+
+		Field[] fs = entityType.getDeclaredFields();
+		for (Field f : fs) {
+			if (f.getAnnotation(Relation.class) != null) {
+				continue;
+			}
+			fieldBuilder.append(f.getName() + ",");
+		}
+		return StringUtil.deleteLastCharacter(fieldBuilder);
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
 	public Class<?> getEntityType() {
 		return entityType;
 	}
 
-	protected class OrderBy {
+	public class OrderBy {
 		private String columnName;
 		private boolean desc;
 
@@ -162,6 +412,14 @@ public class Selector implements ISelector {
 			this.desc = desc;
 		}
 
+		public String getColumnName() {
+			return columnName;
+		}
+
+		public boolean isDesc() {
+			return desc;
+		}
+
 		@Override
 		public String toString() {
 			return columnName + (desc ? " DESC" : " ASC");
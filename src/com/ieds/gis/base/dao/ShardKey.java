@@ -0,0 +1,30 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 分库字段，ShardSet按此字段的值决定数据写入哪个分库文件
+ * 
+ * @author lihx
+ * 
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ShardKey {
+
+	public enum Strategy {
+		/**
+		 * 按字段值分库，如line_id
+		 */
+		VALUE,
+		/**
+		 * 按日期字段的年份分库，如create_time；字段可以是Date、Calendar、毫秒数或以4位年份开头的字符串
+		 */
+		YEAR
+	}
+
+	Strategy strategy() default Strategy.VALUE;
+}
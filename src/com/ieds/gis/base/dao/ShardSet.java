@@ -0,0 +1,448 @@
+package com.ieds.gis.base.dao;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.lidroid.xutils.db.sqlite.CursorUtils;
+import com.lidroid.xutils.db.sqlite.SqlInfo;
+import com.lidroid.xutils.db.sqlite.SqlInfoBuilder;
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
+
+/**
+ * 分库管理
+ * 
+ * 数据按ShardKey字段的值写入目录下的"前缀_分库名.sqlite"文件，每个文件按注册的po类建表和索引。
+ * 跨分库查询时分库数不超过MAX_ATTACHED则ATTACH到一个专用的内存库用UNION ALL一次查询，
+ * 否则在各分库上并行查询后按Selector的排序合并。旧的分库可以移出目录归档
+ * 
+ * 不ATTACH到主库：ATTACH不能在事务中执行，而且会让主库的连接退出WAL，
+ * 内存库只有一个连接、从不开启事务，多个线程的ATTACH查询依次执行
+ * 
+ * @author lihx
+ * 
+ */
+public class ShardSet {
+
+	/**
+	 * SQLite默认最多附加10个数据库
+	 */
+	public static final int MAX_ATTACHED = 10;
+	private static final String SUFFIX = ".sqlite";
+	private static final String ALIAS_PREFIX = "shard_";
+
+	private final File dir;
+	private final String prefix;
+	private final SchemaMigrator schema = new SchemaMigrator();
+	private final Map<String, SQLiteDatabase> shards = new HashMap<String, SQLiteDatabase>();
+	private final Object attachLock = new Object();
+	private SQLiteDatabase attachDb;
+
+	public ShardSet(File dir, String prefix) {
+		this.dir = dir;
+		this.prefix = prefix;
+		dir.mkdirs();
+	}
+
+	/**
+	 * 注册分库中的表
+	 * 
+	 * @param entityType
+	 *            需要有ShardKey字段
+	 * @return
+	 */
+	public ShardSet addEntity(Class<?> entityType) {
+		schema.addEntity(entityType);
+		return this;
+	}
+
+	/**
+	 * @return 目录中已有的分库名
+	 */
+	public List<String> getShardNames() {
+		List<String> names = new ArrayList<String>();
+		String[] files = dir.list();
+		if (files != null) {
+			for (String file : files) {
+				if (file.startsWith(prefix + "_") && file.endsWith(SUFFIX)) {
+					names.add(file.substring(prefix.length() + 1, file.length()
+							- SUFFIX.length()));
+				}
+			}
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	public File getShardFile(String name) {
+		return new File(dir, prefix + "_" + name + SUFFIX);
+	}
+
+	/**
+	 * @param entity
+	 * @return 对象应写入的分库名
+	 * @throws DbException
+	 */
+	public static String getShardName(Object entity) throws DbException {
+		for (Field f : entity.getClass().getDeclaredFields()) {
+			ShardKey key = f.getAnnotation(ShardKey.class);
+			if (key == null) {
+				continue;
+			}
+			f.setAccessible(true);
+			Object value;
+			try {
+				value = f.get(entity);
+			} catch (IllegalAccessException e) {
+				throw new DbException(e.getMessage());
+			}
+			if (value == null) {
+				throw new DbException("对象[" + entity.getClass() + "]的分库字段"
+						+ f.getName() + "不能是null");
+			}
+			if (key.strategy() == ShardKey.Strategy.YEAR) {
+				return getYear(entity, f, value);
+			}
+			return value.toString().replaceAll("[^A-Za-z0-9_]", "_");
+		}
+		throw new DbException("对象[" + entity.getClass() + "]没有ShardKey字段");
+	}
+
+	/**
+	 * YEAR分库的年份：Date、Calendar按本地时区取年份，数字按毫秒数，字符串取开头的4位数字(如"2014-05-01")
+	 */
+	private static String getYear(Object entity, Field f, Object value)
+			throws DbException {
+		Calendar calendar = null;
+		if (value instanceof Date) {
+			calendar = Calendar.getInstance();
+			calendar.setTime((Date) value);
+		} else if (value instanceof Calendar) {
+			calendar = (Calendar) value;
+		} else if (value instanceof Number) {
+			calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(((Number) value).longValue());
+		}
+		if (calendar != null) {
+			return String.valueOf(calendar.get(Calendar.YEAR));
+		}
+		String text = value.toString();
+		if (text.length() < 4 || !text.substring(0, 4).matches("[0-9]{4}")) {
+			throw new DbException("对象[" + entity.getClass() + "]的分库字段"
+					+ f.getName() + "不是以年份开头的日期：" + text);
+		}
+		return text.substring(0, 4);
+	}
+
+	/**
+	 * 打开分库，不存在时创建并建表
+	 * 
+	 * @param name
+	 * @return
+	 * @throws DbException
+	 */
+	public synchronized SQLiteDatabase openShard(String name)
+			throws DbException {
+		SQLiteDatabase db = shards.get(name);
+		if (db == null) {
+			db = SQLiteDatabase.openOrCreateDatabase(getShardFile(name), null);
+			db.execSQL("PRAGMA recursive_triggers = ON");
+			db.beginTransaction();
+			try {
+				schema.createSchema(db);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			shards.put(name, db);
+		}
+		return db;
+	}
+
+	public <T> void save(List<T> entities) throws DbException {
+		write(entities, false);
+	}
+
+	public <T> void replace(List<T> entities) throws DbException {
+		write(entities, true);
+	}
+
+	/**
+	 * 按分库分组，每个分库一个事务
+	 */
+	private <T> void write(List<T> entities, boolean replace)
+			throws DbException {
+		Map<String, List<Object>> groups = new LinkedHashMap<String, List<Object>>();
+		for (Object entity : entities) {
+			if (entity == null) {
+				continue;
+			}
+			String name = getShardName(entity);
+			List<Object> group = groups.get(name);
+			if (group == null) {
+				group = new ArrayList<Object>();
+				groups.put(name, group);
+			}
+			group.add(entity);
+		}
+		for (Map.Entry<String, List<Object>> group : groups.entrySet()) {
+			SQLiteDatabase db = openShard(group.getKey());
+			db.beginTransaction();
+			try {
+				for (Object entity : group.getValue()) {
+					SqlInfo sqlInfo = replace ? SqlInfoBuilder
+							.buildReplaceSqlInfo(entity) : SqlInfoBuilder
+							.buildInsertSqlInfo(entity);
+					db.execSQL(sqlInfo.getSql(), sqlInfo.getBindArgsAsArray());
+				}
+				db.setTransactionSuccessful();
+			} catch (Exception e) {
+				throw QueryTask.toDbException(e);
+			} finally {
+				db.endTransaction();
+			}
+		}
+	}
+
+	/**
+	 * 查询所有分库
+	 * 
+	 * @param selector
+	 * @return
+	 * @throws DbException
+	 */
+	public <T> List<T> findAll(Selector selector) throws DbException {
+		return findAll(selector, getShardNames());
+	}
+
+	/**
+	 * 查询指定的分库，按selector的排序和分页返回
+	 * 
+	 * @param selector
+	 * @param names
+	 * @return
+	 * @throws DbException
+	 */
+	public <T> List<T> findAll(Selector selector, List<String> names)
+			throws DbException {
+		if (names.isEmpty()) {
+			return new ArrayList<T>();
+		}
+		if (names.size() <= MAX_ATTACHED) {
+			return findAllAttached(selector, names);
+		}
+		return findAllParallel(selector, names);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> List<T> findAllAttached(Selector selector, List<String> names)
+			throws DbException {
+		synchronized (attachLock) {
+			if (attachDb == null) {
+				attachDb = SQLiteDatabase.create(null);
+			}
+			List<String> attached = new ArrayList<String>();
+			try {
+				StringBuilder sql = new StringBuilder("SELECT * FROM (");
+				for (int i = 0; i < names.size(); i++) {
+					String alias = ALIAS_PREFIX + i;
+					attachDb.execSQL("ATTACH DATABASE '"
+							+ getShardFile(names.get(i)).getAbsolutePath()
+									.replace("'", "''") + "' AS " + alias);
+					attached.add(alias);
+					if (i > 0) {
+						sql.append(" UNION ALL ");
+					}
+					sql.append(selector.getSelectSql(alias + "."
+							+ selector.getTableName()));
+				}
+				sql.append(")").append(selector.getOrderBySql())
+						.append(selector.getLimitSql());
+				Cursor cursor = attachDb.rawQuery(sql.toString(), null);
+				List<T> result = new ArrayList<T>();
+				try {
+					while (cursor.moveToNext()) {
+						result.add((T) CursorUtils.getEntity(cursor,
+								selector.getEntityType()));
+					}
+				} finally {
+					IOUtils.closeQuietly(cursor);
+				}
+				return result;
+			} catch (Exception e) {
+				throw QueryTask.toDbException(e);
+			} finally {
+				for (String alias : attached) {
+					try {
+						attachDb.execSQL("DETACH DATABASE " + alias);
+					} catch (Exception e) {
+						LogUtils.w(e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	private <T> List<T> findAllParallel(final Selector selector,
+			List<String> names) throws DbException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				names.size(), Runtime.getRuntime().availableProcessors()));
+		// 每个分库最多取offset+limit行，合并排序后再分页
+		final String sql = selector.getSelectSql(selector.getTableName())
+				+ selector.getOrderBySql()
+				+ (selector.getLimit() > 0 ? " LIMIT "
+						+ (selector.getOffset() + selector.getLimit()) : "");
+		try {
+			List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+			for (final String name : names) {
+				futures.add(executor.submit(new Callable<List<T>>() {
+
+					@Override
+					@SuppressWarnings("unchecked")
+					public List<T> call() throws Exception {
+						SQLiteDatabase db = openShard(name);
+						Cursor cursor = db.rawQuery(sql, null);
+						List<T> result = new ArrayList<T>();
+						try {
+							while (cursor.moveToNext()) {
+								result.add((T) CursorUtils.getEntity(cursor,
+										selector.getEntityType()));
+							}
+						} finally {
+							IOUtils.closeQuietly(cursor);
+						}
+						return result;
+					}
+				}));
+			}
+			List<T> result = new ArrayList<T>();
+			for (Future<List<T>> future : futures) {
+				result.addAll(future.get());
+			}
+			if (selector.getOrderByList() != null) {
+				Collections.sort(result, new OrderComparator<T>(selector));
+			}
+			int from = Math.min(selector.getOffset(), result.size());
+			int to = selector.getLimit() > 0 ? Math.min(from
+					+ selector.getLimit(), result.size()) : result.size();
+			return new ArrayList<T>(result.subList(from, to));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException(e.getMessage());
+		} catch (ExecutionException e) {
+			throw QueryTask.toDbException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * 关闭分库，把数据库文件连同日志文件(-journal、-wal)一起移到归档目录，之后该分库从目录中消失，
+	 * 再写入同名分库时会新建文件。-shm只是共享内存索引，直接删除
+	 * 
+	 * @param name
+	 * @param archiveDir
+	 * @return 归档后的数据库文件
+	 * @throws DbException
+	 */
+	public synchronized File archiveShard(String name, File archiveDir)
+			throws DbException {
+		SQLiteDatabase db = shards.remove(name);
+		if (db != null) {
+			db.close();
+		}
+		archiveDir.mkdirs();
+		File source = getShardFile(name);
+		File target = new File(archiveDir, source.getName());
+		if (!source.renameTo(target)) {
+			throw new DbException("归档分库失败：" + source.getAbsolutePath());
+		}
+		// 异常退出时留下的日志需要和数据库文件在一起，打开时才能回滚或恢复
+		for (String suffix : new String[] { "-journal", "-wal" }) {
+			File log = new File(source.getPath() + suffix);
+			if (log.exists()
+					&& !log.renameTo(new File(target.getPath() + suffix))) {
+				throw new DbException("归档分库失败：" + log.getAbsolutePath());
+			}
+		}
+		new File(source.getPath() + "-shm").delete();
+		return target;
+	}
+
+	public synchronized void close() {
+		for (SQLiteDatabase db : shards.values()) {
+			db.close();
+		}
+		shards.clear();
+		synchronized (attachLock) {
+			if (attachDb != null) {
+				attachDb.close();
+				attachDb = null;
+			}
+		}
+	}
+
+	/**
+	 * 按Selector的排序条件比较对象字段，null排在最前
+	 */
+	private static class OrderComparator<T> implements Comparator<T> {
+		private final List<Field> fields = new ArrayList<Field>();
+		private final List<Boolean> desc = new ArrayList<Boolean>();
+
+		OrderComparator(Selector selector) throws DbException {
+			for (Selector.OrderBy orderBy : selector.getOrderByList()) {
+				try {
+					Field f = selector.getEntityType().getDeclaredField(
+							orderBy.getColumnName());
+					f.setAccessible(true);
+					fields.add(f);
+					desc.add(orderBy.isDesc());
+				} catch (NoSuchFieldException e) {
+					throw new DbException("排序列" + orderBy.getColumnName()
+							+ "不存在");
+				}
+			}
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public int compare(T a, T b) {
+			try {
+				for (int i = 0; i < fields.size(); i++) {
+					Comparable va = (Comparable) fields.get(i).get(a);
+					Comparable vb = (Comparable) fields.get(i).get(b);
+					int c;
+					if (va == null) {
+						c = vb == null ? 0 : -1;
+					} else {
+						c = vb == null ? 1 : va.compareTo(vb);
+					}
+					if (c != 0) {
+						return desc.get(i) ? -c : c;
+					}
+				}
+				return 0;
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package com.ieds.gis.base.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
+
+/**
+ * 汇总表，按分组列保存行数和求和列的合计，代替每次对原表GROUP BY
+ * 
+ * 由原表上的触发器增量维护：插入时对应分组加1，删除时减1，分组列或求和列修改时从旧分组减去再加到新分组，
+ * 行数为0的分组删除。INSERT OR REPLACE删除旧行依赖DbUtils打开的recursive_triggers触发删除触发器。
+ * 分组列上有唯一索引，触发器按分组查找时走索引；分组列NOT NULL，原表的NULL存为空BLOB(X'')，
+ * 这样可以用=比较(旧版SQLite的IS用不上索引)，读取时用getSelectSql还原为NULL。
+ * 定义变化时重建汇总表，数据不一致时可以用rebuild整体重算
+ * 
+ * <pre>
+ * migrator.addSummary(SummaryTable.count(&quot;defect_by_level&quot;,
+ * 		CHK_DIS_DEFECT.class, &quot;defect_level&quot;, &quot;status&quot;));
+ * </pre>
+ * 
+ * @author lihx
+ * 
+ */
+public class SummaryTable {
+
+	public static final String COUNT_COLUMN = "cnt";
+	public static final String SUM_PREFIX = "sum_";
+	/** 分组列中代替NULL的值 */
+	private static final String NULL_KEY = "X''";
+
+	private final String name;
+	private final Class<?> entityType;
+	private final List<String> groupColumns;
+	private final List<String> sumColumns = new ArrayList<String>();
+
+	private SummaryTable(String name, Class<?> entityType,
+			String[] groupColumns) {
+		this.name = name;
+		this.entityType = entityType;
+		this.groupColumns = Arrays.asList(groupColumns);
+	}
+
+	/**
+	 * @param name
+	 *            汇总表名
+	 * @param entityType
+	 * @param groupColumns
+	 *            为空时只有一行总数
+	 * @return
+	 */
+	public static SummaryTable count(String name, Class<?> entityType,
+			String... groupColumns) {
+		return new SummaryTable(name, entityType, groupColumns);
+	}
+
+	/**
+	 * 增加求和列，汇总表中列名为"sum_列名"，null按0计算
+	 * 
+	 * @param column
+	 * @return
+	 */
+	public SummaryTable sum(String column) {
+		sumColumns.add(column);
+		return this;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Class<?> getEntityType() {
+		return entityType;
+	}
+
+	public List<String> getGroupColumns() {
+		return groupColumns;
+	}
+
+	public List<String> getSumColumns() {
+		return sumColumns;
+	}
+
+	/**
+	 * 汇总表或触发器不存在、定义变化时重建
+	 * 
+	 * @param db
+	 * @throws DbException
+	 */
+	public void ensure(SQLiteDatabase db) throws DbException {
+		String tableName = EntitySchema.getTableName(entityType);
+		Cursor cursor = db.rawQuery(
+				"SELECT name, sql FROM sqlite_master WHERE name IN (?,?,?,?,?)",
+				new String[] { name, name + "_ai", name + "_ad", name + "_au",
+						getIndexName() });
+		int upToDate = 0;
+		try {
+			while (cursor.moveToNext()) {
+				String existing = cursor.getString(1);
+				String expected = getSchemaSql(cursor.getString(0), tableName);
+				if (existing != null && existing.equals(expected)) {
+					upToDate++;
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		if (upToDate < (groupColumns.isEmpty() ? 4 : 5)) {
+			rebuild(db);
+		}
+	}
+
+	/**
+	 * 删除并重新创建汇总表和触发器，用原表数据整体计算
+	 * 
+	 * @param db
+	 * @throws DbException
+	 */
+	public void rebuild(SQLiteDatabase db) throws DbException {
+		String tableName = EntitySchema.getTableName(entityType);
+		drop(db);
+		exec(db, getCreateTableSql());
+		if (!groupColumns.isEmpty()) {
+			exec(db, getCreateIndexSql());
+		}
+		exec(db, "INSERT INTO " + name + " (" + getColumnList() + ") "
+				+ getAggregateSql(tableName));
+		exec(db, getTriggerSql(name + "_ai", tableName));
+		exec(db, getTriggerSql(name + "_ad", tableName));
+		exec(db, getTriggerSql(name + "_au", tableName));
+	}
+
+	public void drop(SQLiteDatabase db) throws DbException {
+		exec(db, "DROP TRIGGER IF EXISTS " + name + "_ai");
+		exec(db, "DROP TRIGGER IF EXISTS " + name + "_ad");
+		exec(db, "DROP TRIGGER IF EXISTS " + name + "_au");
+		exec(db, "DROP INDEX IF EXISTS " + getIndexName());
+		exec(db, "DROP TABLE IF EXISTS " + name);
+	}
+
+	/**
+	 * 与原表重新GROUP BY的结果比较
+	 * 
+	 * @param db
+	 * @return 不一致的分组数，0表示一致
+	 * @throws DbException
+	 */
+	public int check(SQLiteDatabase db) throws DbException {
+		String tableName = EntitySchema.getTableName(entityType);
+		String aggregate = getAggregateSql(tableName);
+		String stored = "SELECT " + getColumnList() + " FROM " + name;
+		String sql = "SELECT (SELECT count(*) FROM (" + aggregate + " EXCEPT "
+				+ stored + ")) + (SELECT count(*) FROM (" + stored
+				+ " EXCEPT " + aggregate + "))";
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery(sql, null);
+			return cursor.moveToNext() ? cursor.getInt(0) : 0;
+		} catch (SQLiteException e) {
+			throw new DbException("异常原因：" + e.getMessage() + "\n异常语句：sql=("
+					+ sql + ")");
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+	}
+
+	String getCreateTableSql() {
+		StringBuilder sql = new StringBuilder("CREATE TABLE ").append(name)
+				.append(" (");
+		for (String column : groupColumns) {
+			sql.append(column).append(" NOT NULL,");
+		}
+		sql.append(COUNT_COLUMN).append(" INTEGER NOT NULL");
+		for (String column : sumColumns) {
+			sql.append(",").append(SUM_PREFIX).append(column)
+					.append(" NOT NULL");
+		}
+		return sql.append(")").toString();
+	}
+
+	String getCreateIndexSql() {
+		StringBuilder sql = new StringBuilder("CREATE UNIQUE INDEX ")
+				.append(getIndexName()).append(" ON ").append(name)
+				.append(" (");
+		for (int i = 0; i < groupColumns.size(); i++) {
+			sql.append(i > 0 ? "," : "").append(groupColumns.get(i));
+		}
+		return sql.append(")").toString();
+	}
+
+	/**
+	 * @return 读取汇总表的语句，分组列中的空BLOB还原为NULL
+	 */
+	public String getSelectSql() {
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (String column : groupColumns) {
+			sql.append("NULLIF(").append(column).append(",").append(NULL_KEY)
+					.append(") AS ").append(column).append(",");
+		}
+		sql.append(COUNT_COLUMN);
+		for (String column : sumColumns) {
+			sql.append(",").append(SUM_PREFIX).append(column);
+		}
+		return sql.append(" FROM ").append(name).toString();
+	}
+
+	/**
+	 * @param column
+	 *            分组列
+	 * @param value
+	 *            值表达式，如?或new.列名
+	 * @return 按分组查找的条件，可以使用唯一索引
+	 */
+	public static String getKeyCondition(String column, String value) {
+		return column + "=" + getKey(value);
+	}
+
+	private static String getKey(String value) {
+		return "IFNULL(" + value + "," + NULL_KEY + ")";
+	}
+
+	private String getIndexName() {
+		return name + "_key";
+	}
+
+	private String getSchemaSql(String objectName, String tableName) {
+		if (objectName.equals(name)) {
+			return getCreateTableSql();
+		}
+		if (objectName.equals(getIndexName())) {
+			return getCreateIndexSql();
+		}
+		return getTriggerSql(objectName, tableName);
+	}
+
+	private String getColumnList() {
+		StringBuilder sql = new StringBuilder();
+		for (String column : groupColumns) {
+			sql.append(column).append(",");
+		}
+		sql.append(COUNT_COLUMN);
+		for (String column : sumColumns) {
+			sql.append(",").append(SUM_PREFIX).append(column);
+		}
+		return sql.toString();
+	}
+
+	private String getAggregateSql(String tableName) {
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (String column : groupColumns) {
+			sql.append(getKey(column)).append(",");
+		}
+		sql.append("count(*) AS count_all");
+		for (String column : sumColumns) {
+			sql.append(",IFNULL(sum(").append(column).append("),0)");
+		}
+		sql.append(" FROM ").append(tableName);
+		if (groupColumns.isEmpty()) {
+			// 空表时没有汇总行，与触发器删除行数为0的分组一致
+			return "SELECT * FROM (" + sql + ") WHERE count_all>0";
+		}
+		sql.append(" GROUP BY ");
+		for (int i = 0; i < groupColumns.size(); i++) {
+			sql.append(i > 0 ? "," : "").append(groupColumns.get(i));
+		}
+		return sql.toString();
+	}
+
+	private String getTriggerSql(String triggerName, String tableName) {
+		StringBuilder sql = new StringBuilder("CREATE TRIGGER ").append(
+				triggerName);
+		if (triggerName.endsWith("_ai")) {
+			sql.append(" AFTER INSERT ON ").append(tableName)
+					.append(" BEGIN ").append(getAddSql("new", 1));
+		} else if (triggerName.endsWith("_ad")) {
+			sql.append(" AFTER DELETE ON ").append(tableName)
+					.append(" BEGIN ").append(getAddSql("old", -1));
+		} else {
+			List<String> columns = new ArrayList<String>(groupColumns);
+			columns.addAll(sumColumns);
+			sql.append(" AFTER UPDATE");
+			if (!columns.isEmpty()) {
+				sql.append(" OF ");
+				for (int i = 0; i < columns.size(); i++) {
+					sql.append(i > 0 ? "," : "").append(columns.get(i));
+				}
+			}
+			sql.append(" ON ").append(tableName);
+			if (!columns.isEmpty()) {
+				sql.append(" WHEN ");
+				for (int i = 0; i < columns.size(); i++) {
+					sql.append(i > 0 ? " OR " : "").append("old.")
+							.append(columns.get(i)).append(" IS NOT new.")
+							.append(columns.get(i));
+				}
+			}
+			sql.append(" BEGIN ").append(getAddSql("old", -1))
+					.append(getAddSql("new", 1));
+		}
+		return sql.append("END").toString();
+	}
+
+	/**
+	 * 对row(old或new)所在的分组加上或减去一行
+	 */
+	private String getAddSql(String row, int sign) {
+		StringBuilder where = new StringBuilder();
+		for (int i = 0; i < groupColumns.size(); i++) {
+			String column = groupColumns.get(i);
+			where.append(i > 0 ? " AND " : " WHERE ").append(
+					getKeyCondition(column, row + "." + column));
+		}
+		String op = sign > 0 ? "+" : "-";
+		StringBuilder sql = new StringBuilder();
+		if (sign > 0) {
+			sql.append("INSERT INTO ").append(name).append(" (")
+					.append(getColumnList()).append(") SELECT ");
+			for (String column : groupColumns) {
+				sql.append(getKey(row + "." + column)).append(",");
+			}
+			sql.append("0");
+			for (int i = 0; i < sumColumns.size(); i++) {
+				sql.append(",0");
+			}
+			sql.append(" WHERE NOT EXISTS (SELECT 1 FROM ").append(name)
+					.append(where).append("); ");
+		}
+		sql.append("UPDATE ").append(name).append(" SET ")
+				.append(COUNT_COLUMN).append("=").append(COUNT_COLUMN)
+				.append(op).append("1");
+		for (String column : sumColumns) {
+			sql.append(",").append(SUM_PREFIX).append(column).append("=")
+					.append(SUM_PREFIX).append(column).append(op)
+					.append("IFNULL(").append(row).append(".").append(column)
+					.append(",0)");
+		}
+		sql.append(where).append("; ");
+		if (sign < 0) {
+			sql.append("DELETE FROM ").append(name).append(" WHERE ")
+					.append(COUNT_COLUMN).append("<=0");
+			for (String column : groupColumns) {
+				sql.append(" AND ").append(
+						getKeyCondition(column, row + "." + column));
+			}
+			sql.append("; ");
+		}
+		return sql.toString();
+	}
+
+	private static void exec(SQLiteDatabase db, String sql) throws DbException {
+		LogUtils.d(sql);
+		try {
+			db.execSQL(sql);
+		} catch (SQLiteException e) {
+			throw new DbException("异常原因：" + e.getMessage() + "\n异常语句：sql=("
+					+ sql + ")");
+		}
+	}
+}
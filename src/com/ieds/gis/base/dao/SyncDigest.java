@@ -0,0 +1,507 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+
+import com.lidroid.xutils.db.sqlite.SqlInfo;
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.IOUtils;
+
+/**
+ * 增量同步摘要，比较两端的摘要后只传输和写入有差异的数据
+ * 
+ * 每行按所有列的值计算64位哈希，按主键的哈希分到16^depth个桶中，桶的摘要为桶内行哈希之和，
+ * 上一层节点为16个子节点之和，形成16叉的摘要树。两端从根节点开始逐层比较，只下探不同的节点，
+ * 最后只拉取不同的桶，桶内再按行哈希只写入变化的行、删除对端没有的行。
+ * 
+ * 行哈希：列按列名排序，每列写类型标记(0 null,1 整数,2 浮点,3 文本,4 二进制)和值，取MD5前8字节。
+ * 服务端用rowHash/bucketOf按同样规则计算即可对接。
+ * 
+ * 行哈希缓存在内存中，表版本(DbUtils.getTableVersion)变化后重新扫描，不通过DbUtils直接执行sql修改数据后需要调用invalidate；
+ * sync/apply自己的写入在事务提交后直接更新缓存，不触发重新扫描；其他事务在这期间写入了表时仍重新扫描，
+ * 同一个事务中用其他方式写入这张表后需要调用invalidate
+ * 
+ * @author lihx
+ * 
+ */
+public class SyncDigest<T> implements SyncSummary, SyncRowSource<T> {
+
+	public static final int DEFAULT_DEPTH = 2;
+	public static final int FANOUT = 16;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char KEY_SEPARATOR = '\u0001';
+
+	private final DbUtils db;
+	private final Class<T> entityType;
+	private final int depth;
+	private final String tableName;
+	private final String[] columns;
+	private final List<String> idColumns;
+	private final Field[] fields;
+	private final Field[] idFields;
+
+	private long version = -1;
+	private long[][] levels;
+	/** 每个桶中主键与行哈希 */
+	private List<Map<String, Long>> buckets;
+
+	SyncDigest(DbUtils db, Class<T> entityType, int depth) throws DbException {
+		if (depth < 1 || depth > 4) {
+			throw new DbException("depth必须在1到4之间：" + depth);
+		}
+		this.db = db;
+		this.entityType = entityType;
+		this.depth = depth;
+		this.tableName = EntitySchema.getTableName(entityType);
+		this.columns = getSortedColumns(entityType);
+		this.idColumns = EntitySchema.getIdColumns(entityType);
+		if (idColumns.isEmpty()) {
+			throw new DbException("对象[" + entityType + "]没有主键，不能同步");
+		}
+		this.fields = getFields(entityType, Arrays.asList(columns));
+		this.idFields = getFields(entityType, idColumns);
+	}
+
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public synchronized long getHash(int level, int index) throws DbException {
+		refresh();
+		return levels[level][index];
+	}
+
+	/**
+	 * @return 本端桶内的行，用作其他设备或测试时的对端
+	 */
+	@Override
+	public List<T> getRows(int bucket) throws DbException {
+		List<Object> ids = new ArrayList<Object>();
+		synchronized (this) {
+			refresh();
+			for (String key : buckets.get(bucket).keySet()) {
+				ids.add(toId(key));
+			}
+		}
+		return db.findByIds(entityType, ids);
+	}
+
+	/**
+	 * 标记缓存失效，下次使用时重新扫描表
+	 */
+	public synchronized void invalidate() {
+		levels = null;
+		buckets = null;
+	}
+
+	/**
+	 * 从根节点逐层比较，只请求不同节点的子节点
+	 * 
+	 * @param remote
+	 * @return 不同的桶
+	 * @throws DbException
+	 */
+	public List<Integer> diff(SyncSummary remote) throws DbException {
+		if (remote.getDepth() != depth) {
+			throw new DbException("摘要层数不一致：" + depth + "/"
+					+ remote.getDepth());
+		}
+		List<Integer> result = new ArrayList<Integer>();
+		diff(remote, 0, 0, result);
+		return result;
+	}
+
+	private void diff(SyncSummary remote, int level, int index,
+			List<Integer> result) throws DbException {
+		if (getHash(level, index) == remote.getHash(level, index)) {
+			return;
+		}
+		if (level == depth) {
+			result.add(index);
+			return;
+		}
+		for (int i = 0; i < FANOUT; i++) {
+			diff(remote, level + 1, index * FANOUT + i, result);
+		}
+	}
+
+	/**
+	 * 比较摘要，拉取不同的桶并写入，在一个事务中执行
+	 * 
+	 * @param remote
+	 * @param source
+	 * @return 写入和删除的行数
+	 * @throws DbException
+	 */
+	public int sync(SyncSummary remote, SyncRowSource<T> source)
+			throws DbException {
+		List<Integer> changed = diff(remote);
+		if (changed.isEmpty()) {
+			return 0;
+		}
+		Delta delta = new Delta();
+		int count = 0;
+		try {
+			db.beginTransactionUnchecked();
+
+			for (Integer bucket : changed) {
+				count += write(bucket, source.getRows(bucket), delta);
+			}
+			commitDelta(delta);
+
+			db.setTransactionSuccessfulUnchecked();
+		} finally {
+			db.endTransactionUnchecked();
+		}
+		return count;
+	}
+
+	/**
+	 * 用对端一个桶的全部行更新本端：哈希不同的行写入所有列(包括null)，对端没有的行删除
+	 * 
+	 * @param bucket
+	 * @param remoteRows
+	 * @return 写入和删除的行数
+	 * @throws DbException
+	 */
+	public int apply(int bucket, List<T> remoteRows) throws DbException {
+		Delta delta = new Delta();
+		int count;
+		try {
+			db.beginTransactionUnchecked();
+
+			count = write(bucket, remoteRows, delta);
+			commitDelta(delta);
+
+			db.setTransactionSuccessfulUnchecked();
+		} finally {
+			db.endTransactionUnchecked();
+		}
+		return count;
+	}
+
+	/**
+	 * 写入一个桶，写入和删除的行哈希记入delta，需要在事务中调用
+	 */
+	private int write(int bucket, List<T> remoteRows, Delta delta)
+			throws DbException {
+		Map<String, Long> local;
+		synchronized (this) {
+			refresh();
+			local = new HashMap<String, Long>(buckets.get(bucket));
+			if (delta.version < 0) {
+				delta.version = version;
+			}
+		}
+		List<T> upserts = new ArrayList<T>();
+		for (T row : remoteRows) {
+			String key = getKey(row, idFields);
+			if (bucketOf(key, depth) != bucket) {
+				throw new DbException("行[" + key.replace(KEY_SEPARATOR, ',')
+						+ "]不属于桶" + bucket);
+			}
+			Long hash = local.remove(key);
+			long remoteHash = rowHash(row, fields);
+			if (hash == null || hash != remoteHash) {
+				upserts.add(row);
+				delta.written.put(key, remoteHash);
+			}
+		}
+		// 对端改为null的列也要写入，否则两端一直不一致
+		db.upsert(upserts, true);
+		if (!local.isEmpty()) {
+			int deleted = 0;
+			for (String key : local.keySet()) {
+				deleted += db.execUpdateDelete(getDeleteSqlInfo(key));
+			}
+			db.notifyTableChanged(tableName, deleted);
+			delta.deleted.addAll(local.keySet());
+		}
+		return upserts.size() + local.size();
+	}
+
+	/**
+	 * 事务提交后把delta合并到缓存
+	 */
+	private void commitDelta(final Delta delta) {
+		if (delta.written.isEmpty() && delta.deleted.isEmpty()) {
+			return;
+		}
+		db.runAfterCommit(new Runnable() {
+
+			@Override
+			public void run() {
+				merge(delta);
+			}
+		});
+	}
+
+	/**
+	 * 提交只让表版本加1，缓存仍是写入前的版本时才能合并，否则表还有其他写操作，下次使用时重新扫描
+	 */
+	private synchronized void merge(Delta delta) {
+		long current = db.getTableVersion(tableName);
+		if (levels == null || version != delta.version
+				|| current != delta.version + 1) {
+			invalidate();
+			return;
+		}
+		for (String key : delta.deleted) {
+			Long old = buckets.get(bucketOf(key, depth)).remove(key);
+			if (old != null) {
+				addHash(bucketOf(key, depth), -old);
+			}
+		}
+		for (Map.Entry<String, Long> e : delta.written.entrySet()) {
+			int bucket = bucketOf(e.getKey(), depth);
+			Long old = buckets.get(bucket).put(e.getKey(), e.getValue());
+			addHash(bucket, e.getValue() - (old == null ? 0 : old));
+		}
+		version = current;
+	}
+
+	/**
+	 * 桶和各层祖先节点加上同一个差值
+	 */
+	private void addHash(int bucket, long diff) {
+		for (int level = depth; level >= 0; level--) {
+			levels[level][bucket >>> (4 * (depth - level))] += diff;
+		}
+	}
+
+	/**
+	 * 一个事务中写入和删除的行
+	 */
+	private static class Delta {
+		long version = -1;
+		final Map<String, Long> written = new HashMap<String, Long>();
+		final Set<String> deleted = new HashSet<String>();
+	}
+
+	/**
+	 * 按对象计算行哈希，与从数据库读取的行的计算结果一致
+	 * 
+	 * @param entity
+	 * @return
+	 */
+	public static long rowHash(Object entity) {
+		Class<?> type = entity.getClass();
+		return rowHash(entity,
+				getFields(type, Arrays.asList(getSortedColumns(type))));
+	}
+
+	/**
+	 * @param entity
+	 * @param depth
+	 * @return 对象所在的桶
+	 * @throws DbException
+	 */
+	public static int bucketOf(Object entity, int depth) throws DbException {
+		Class<?> type = entity.getClass();
+		return bucketOf(
+				getKey(entity, getFields(type, EntitySchema.getIdColumns(type))),
+				depth);
+	}
+
+	private void refresh() throws DbException {
+		long current = db.getTableVersion(tableName);
+		if (levels != null && version == current) {
+			return;
+		}
+		int leafCount = 1 << (4 * depth);
+		List<Map<String, Long>> newBuckets = new ArrayList<Map<String, Long>>(
+				leafCount);
+		for (int i = 0; i < leafCount; i++) {
+			newBuckets.add(new HashMap<String, Long>());
+		}
+		long[][] newLevels = new long[depth + 1][];
+		for (int level = 0; level <= depth; level++) {
+			newLevels[level] = new long[1 << (4 * level)];
+		}
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (int i = 0; i < columns.length; i++) {
+			sql.append(i > 0 ? "," : "").append(columns[i]);
+		}
+		sql.append(" FROM ").append(tableName);
+		int[] idIndexes = new int[idColumns.size()];
+		for (int i = 0; i < idIndexes.length; i++) {
+			idIndexes[i] = Arrays.asList(columns).indexOf(idColumns.get(i));
+		}
+		MessageDigest md5 = newMd5();
+		Cursor cursor = db.execQuery(sql.toString());
+		try {
+			while (cursor.moveToNext()) {
+				StringBuilder key = new StringBuilder();
+				for (int i = 0; i < idIndexes.length; i++) {
+					key.append(i > 0 ? String.valueOf(KEY_SEPARATOR) : "")
+							.append(cursor.getString(idIndexes[i]));
+				}
+				long hash = rowHash(cursor, md5);
+				int bucket = bucketOf(key.toString(), depth);
+				newBuckets.get(bucket).put(key.toString(), hash);
+				newLevels[depth][bucket] += hash;
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		for (int level = depth - 1; level >= 0; level--) {
+			for (int i = 0; i < newLevels[level + 1].length; i++) {
+				newLevels[level][i / FANOUT] += newLevels[level + 1][i];
+			}
+		}
+		this.levels = newLevels;
+		this.buckets = newBuckets;
+		this.version = current;
+	}
+
+	private SqlInfo getDeleteSqlInfo(String key) {
+		String[] values = splitKey(key);
+		SqlInfo sqlInfo = new SqlInfo();
+		StringBuilder sql = new StringBuilder("DELETE FROM ").append(
+				tableName).append(" WHERE ");
+		for (int i = 0; i < idColumns.size(); i++) {
+			sql.append(i > 0 ? " AND " : "").append(idColumns.get(i))
+					.append("=?");
+			sqlInfo.addBindArg(values[i]);
+		}
+		sqlInfo.setSql(sql.toString());
+		return sqlInfo;
+	}
+
+	private Object toId(String key) {
+		String[] values = splitKey(key);
+		return values.length == 1 ? values[0] : values;
+	}
+
+	private static String[] splitKey(String key) {
+		return key.split(String.valueOf(KEY_SEPARATOR), -1);
+	}
+
+	private static String[] getSortedColumns(Class<?> type) {
+		String[] names = EntitySchema.getColumns(type).keySet()
+				.toArray(new String[0]);
+		Arrays.sort(names);
+		return names;
+	}
+
+	private static Field[] getFields(Class<?> type, List<String> names) {
+		Field[] result = new Field[names.size()];
+		for (int i = 0; i < result.length; i++) {
+			try {
+				result[i] = type.getDeclaredField(names.get(i));
+			} catch (NoSuchFieldException e) {
+				throw new IllegalArgumentException("字段[" + type.getSimpleName()
+						+ "." + names.get(i) + "]不存在");
+			}
+			result[i].setAccessible(true);
+		}
+		return result;
+	}
+
+	private static Object getValue(Field field, Object entity) {
+		try {
+			return TypeConverters.toDbValue(field.get(entity));
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+
+	private static String getKey(Object entity, Field[] idFields) {
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < idFields.length; i++) {
+			key.append(i > 0 ? String.valueOf(KEY_SEPARATOR) : "").append(
+					getValue(idFields[i], entity));
+		}
+		return key.toString();
+	}
+
+	private static int bucketOf(String key, int depth) {
+		byte[] digest = newMd5().digest(key.getBytes(UTF8));
+		int prefix = ((digest[0] & 0xff) << 8) | (digest[1] & 0xff);
+		return prefix >>> (16 - 4 * depth);
+	}
+
+	private static long rowHash(Object entity, Field[] fields) {
+		MessageDigest md5 = newMd5();
+		for (Field field : fields) {
+			Object value = getValue(field, entity);
+			if (value == null) {
+				md5.update((byte) 0);
+			} else if (value instanceof Long) {
+				update(md5, 1, (Long) value);
+			} else if (value instanceof Double) {
+				update(md5, 2, Double.doubleToLongBits((Double) value));
+			} else if (value instanceof byte[]) {
+				update(md5, 4, (byte[]) value);
+			} else {
+				update(md5, 3, value.toString().getBytes(UTF8));
+			}
+		}
+		return toLong(md5.digest());
+	}
+
+	private static long rowHash(Cursor cursor, MessageDigest md5) {
+		for (int i = 0; i < cursor.getColumnCount(); i++) {
+			switch (cursor.getType(i)) {
+			case Cursor.FIELD_TYPE_NULL:
+				md5.update((byte) 0);
+				break;
+			case Cursor.FIELD_TYPE_INTEGER:
+				update(md5, 1, cursor.getLong(i));
+				break;
+			case Cursor.FIELD_TYPE_FLOAT:
+				update(md5, 2, Double.doubleToLongBits(cursor.getDouble(i)));
+				break;
+			case Cursor.FIELD_TYPE_BLOB:
+				update(md5, 4, cursor.getBlob(i));
+				break;
+			default:
+				update(md5, 3, cursor.getString(i).getBytes(UTF8));
+				break;
+			}
+		}
+		return toLong(md5.digest());
+	}
+
+	private static void update(MessageDigest md5, int tag, long value) {
+		md5.update((byte) tag);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			md5.update((byte) (value >>> shift));
+		}
+	}
+
+	private static void update(MessageDigest md5, int tag, byte[] value) {
+		update(md5, tag, value.length);
+		md5.update(value);
+	}
+
+	private static long toLong(byte[] digest) {
+		long result = 0;
+		for (int i = 0; i < 8; i++) {
+			result = (result << 8) | (digest[i] & 0xff);
+		}
+		return result;
+	}
+
+	private static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
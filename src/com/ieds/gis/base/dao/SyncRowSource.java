@@ -0,0 +1,17 @@
+package com.ieds.gis.base.dao;
+
+import java.util.List;
+
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 按桶提供一端的全部行
+ * 
+ * @author lihx
+ * 
+ * @param <T>
+ */
+public interface SyncRowSource<T> {
+
+	public List<T> getRows(int bucket) throws DbException;
+}
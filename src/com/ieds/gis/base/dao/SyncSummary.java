@@ -0,0 +1,24 @@
+package com.ieds.gis.base.dao;
+
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 同步摘要树，本端为SyncDigest，对端可以是远程接口的包装
+ * 
+ * @author lihx
+ * 
+ */
+public interface SyncSummary {
+
+	public int getDepth();
+
+	/**
+	 * @param level
+	 *            0为根节点，depth为桶
+	 * @param index
+	 *            本层节点序号，0到16^level-1
+	 * @return
+	 * @throws DbException
+	 */
+	public long getHash(int level, int index) throws DbException;
+}
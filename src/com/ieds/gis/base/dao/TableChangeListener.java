@@ -0,0 +1,17 @@
+package com.ieds.gis.base.dao;
+
+/**
+ * 表数据变化通知，由DbUtils的写操作在执行语句后调用，调用时事务可能还未提交
+ * 
+ * @author lihx
+ * 
+ */
+public interface TableChangeListener {
+
+	/**
+	 * @param tableName
+	 * @param rows
+	 *            影响的行数，未知时为-1
+	 */
+	public void onTableChanged(String tableName, int rows);
+}
@@ -0,0 +1,250 @@
+package com.ieds.gis.base.dao;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 整表只读快照，用于编码、名称等参照数据的id到名称转换
+ * 
+ * 按列存储：整数列为long[]，浮点列为double[]，其他列按列字典编码为int[]，相同的字符串只保存一份；
+ * 单列主键建开放寻址哈希索引。内存远小于findAll得到的对象列表
+ * 
+ * @author lihx
+ * 
+ */
+public class TableSnapshot {
+
+	private static final int TYPE_LONG = 0;
+	private static final int TYPE_DOUBLE = 1;
+	private static final int TYPE_STRING = 2;
+
+	private final String tableName;
+	private final long version;
+	private final int rowCount;
+	private final Map<String, Integer> columnIndex = new HashMap<String, Integer>();
+	private final int[] types;
+	private final Object[] data;
+	private final String[][] dictionaries;
+	private final BitSet[] nulls;
+	private final int idColumn;
+	private final int[] slots;
+
+	/**
+	 * @param entityType
+	 * @param cursor
+	 *            列顺序与EntitySchema.getColumns一致
+	 * @param version
+	 *            加载时的表版本
+	 * @throws DbException
+	 */
+	TableSnapshot(Class<?> entityType, Cursor cursor, long version)
+			throws DbException {
+		this.tableName = EntitySchema.getTableName(entityType);
+		this.version = version;
+		this.rowCount = cursor.getCount();
+		Map<String, String> columns = EntitySchema.getColumns(entityType);
+		int columnCount = columns.size();
+		this.types = new int[columnCount];
+		this.data = new Object[columnCount];
+		this.dictionaries = new String[columnCount][];
+		this.nulls = new BitSet[columnCount];
+
+		List<Map<String, Integer>> codes = new ArrayList<Map<String, Integer>>(
+				columnCount);
+		int c = 0;
+		for (Map.Entry<String, String> column : columns.entrySet()) {
+			columnIndex.put(column.getKey(), c);
+			nulls[c] = new BitSet(rowCount);
+			if ("INTEGER".equals(column.getValue())) {
+				types[c] = TYPE_LONG;
+				data[c] = new long[rowCount];
+				codes.add(null);
+			} else if ("REAL".equals(column.getValue())) {
+				types[c] = TYPE_DOUBLE;
+				data[c] = new double[rowCount];
+				codes.add(null);
+			} else {
+				types[c] = TYPE_STRING;
+				data[c] = new int[rowCount];
+				codes.add(new HashMap<String, Integer>());
+			}
+			c++;
+		}
+
+		int row = 0;
+		while (cursor.moveToNext()) {
+			for (c = 0; c < columnCount; c++) {
+				if (cursor.isNull(c)) {
+					nulls[c].set(row);
+					continue;
+				}
+				switch (types[c]) {
+				case TYPE_LONG:
+					((long[]) data[c])[row] = cursor.getLong(c);
+					break;
+				case TYPE_DOUBLE:
+					((double[]) data[c])[row] = cursor.getDouble(c);
+					break;
+				default:
+					Map<String, Integer> dictionary = codes.get(c);
+					String value = cursor.getString(c);
+					Integer code = dictionary.get(value);
+					if (code == null) {
+						code = dictionary.size();
+						dictionary.put(value, code);
+					}
+					((int[]) data[c])[row] = code;
+					break;
+				}
+			}
+			row++;
+		}
+		for (c = 0; c < columnCount; c++) {
+			Map<String, Integer> dictionary = codes.get(c);
+			if (dictionary != null) {
+				String[] values = new String[dictionary.size()];
+				for (Map.Entry<String, Integer> e : dictionary.entrySet()) {
+					values[e.getValue()] = e.getKey();
+				}
+				dictionaries[c] = values;
+			}
+		}
+
+		List<String> ids = EntitySchema.getIdColumns(entityType);
+		if (ids.size() == 1 && columnIndex.containsKey(ids.get(0))) {
+			idColumn = columnIndex.get(ids.get(0));
+			int size = Integer.highestOneBit(Math.max(rowCount, 1) * 2) * 2;
+			slots = new int[size];
+			for (row = 0; row < rowCount; row++) {
+				if (nulls[idColumn].get(row)) {
+					continue;
+				}
+				int slot = hash(getValue(row, idColumn)) & (size - 1);
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & (size - 1);
+				}
+				slots[slot] = row + 1;
+			}
+		} else {
+			idColumn = -1;
+			slots = null;
+		}
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @param id
+	 *            主键值
+	 * @return 行号，不存在时为-1
+	 * @throws DbException
+	 */
+	public int findRow(Object id) throws DbException {
+		if (slots == null) {
+			throw new DbException("表[" + tableName + "]不是单列主键，不能按id查找");
+		}
+		if (id == null) {
+			return -1;
+		}
+		String key = id.toString();
+		int mask = slots.length - 1;
+		int slot = hash(key) & mask;
+		while (slots[slot] != 0) {
+			int row = slots[slot] - 1;
+			if (key.equals(getValue(row, idColumn))) {
+				return row;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * 按主键取某一列的值，如按equip_category_id取名称
+	 * 
+	 * @param id
+	 * @param column
+	 * @return 不存在或为null时返回null
+	 * @throws DbException
+	 */
+	public String resolve(Object id, String column) throws DbException {
+		int row = findRow(id);
+		return row < 0 ? null : getString(row, column);
+	}
+
+	public boolean isNull(int row, String column) throws DbException {
+		return nulls[getColumn(column)].get(row);
+	}
+
+	public String getString(int row, String column) throws DbException {
+		int c = getColumn(column);
+		return nulls[c].get(row) ? null : getValue(row, c);
+	}
+
+	public long getLong(int row, String column) throws DbException {
+		int c = getColumn(column);
+		switch (types[c]) {
+		case TYPE_LONG:
+			return ((long[]) data[c])[row];
+		case TYPE_DOUBLE:
+			return (long) ((double[]) data[c])[row];
+		default:
+			String value = getString(row, column);
+			return value == null ? 0 : Long.parseLong(value);
+		}
+	}
+
+	public double getDouble(int row, String column) throws DbException {
+		int c = getColumn(column);
+		switch (types[c]) {
+		case TYPE_LONG:
+			return ((long[]) data[c])[row];
+		case TYPE_DOUBLE:
+			return ((double[]) data[c])[row];
+		default:
+			String value = getString(row, column);
+			return value == null ? 0 : Double.parseDouble(value);
+		}
+	}
+
+	private int getColumn(String column) throws DbException {
+		Integer c = columnIndex.get(column);
+		if (c == null) {
+			throw new DbException("表[" + tableName + "]没有列" + column);
+		}
+		return c;
+	}
+
+	private String getValue(int row, int c) {
+		switch (types[c]) {
+		case TYPE_LONG:
+			return String.valueOf(((long[]) data[c])[row]);
+		case TYPE_DOUBLE:
+			return String.valueOf(((double[]) data[c])[row]);
+		default:
+			return dictionaries[c][((int[]) data[c])[row]];
+		}
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
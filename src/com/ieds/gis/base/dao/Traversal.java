@@ -0,0 +1,416 @@
+package com.ieds.gis.base.dao;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+
+import com.lidroid.xutils.db.sqlite.CursorUtils;
+import com.lidroid.xutils.db.sqlite.SqlInfo;
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.IOUtils;
+
+/**
+ * 拓扑追溯，从起点沿边逐层查找相连的节点，编译为一条WITH RECURSIVE查询
+ * 
+ * 边由一个或多个表的两列定义，多个表的边去重合并，可以表示线路-区段-设备的层级关系。
+ * 每个节点只访问一次，取最小深度，同一深度有多个上游时取其中一个；
+ * 递归中只记录(节点,深度)并用UNION去重，每个节点在每个深度最多展开一次，不会按路径数或上游数增长；
+ * 但环路中的节点会在此后的每个深度再展开一次，最坏为节点数×maxDepth，图中有环时应按实际层数设置maxDepth。
+ * 上游在递归结束后按"深度少一层且有边相连"的节点求出。
+ * 
+ * sqlite 3.8.3(Android 5.0)以下不支持递归查询，改为每层一次IN查询逐层展开
+ * 
+ * <pre>
+ * db.traverse().edge(&quot;CHK_DIS_DEFECT&quot;, &quot;line_id&quot;, &quot;secl_id&quot;)
+ * 		.edge(&quot;CHK_DIS_DEFECT&quot;, &quot;secl_id&quot;, &quot;equip_id&quot;).from(lineId)
+ * 		.maxDepth(5).forEach(handler);
+ * </pre>
+ * 
+ * @author lihx
+ * 
+ */
+public class Traversal {
+
+	public static final int DEFAULT_MAX_DEPTH = 32;
+	private static final String SEPARATOR = "/";
+
+	/**
+	 * 访问到的节点，起点的depth为0，parent为null
+	 */
+	public static class Node {
+
+		private final String key;
+		private final String parent;
+		private final int depth;
+		private final String path;
+
+		Node(String key, String parent, int depth, String path) {
+			this.key = key;
+			this.parent = parent;
+			this.depth = depth;
+			this.path = path;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getParent() {
+			return parent;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		/**
+		 * @return 从起点到本节点的一条最短路径，如"/起点/.../本节点/"
+		 */
+		public String getPath() {
+			return path;
+		}
+	}
+
+	/**
+	 * 逐行处理结果，不把全部节点放入内存
+	 */
+	public interface NodeHandler {
+
+		/**
+		 * @param node
+		 * @return false时停止
+		 * @throws DbException
+		 */
+		public boolean onNode(Node node) throws DbException;
+	}
+
+	private final DbUtils db;
+	private final List<String[]> edges = new ArrayList<String[]>();
+	private final List<Object> startKeys = new ArrayList<Object>();
+	private int maxDepth = DEFAULT_MAX_DEPTH;
+	private int limit = 0;
+	private boolean upstream = false;
+
+	Traversal(DbUtils db) {
+		this.db = db;
+	}
+
+	/**
+	 * 增加一组边
+	 * 
+	 * @param tableName
+	 * @param fromColumn
+	 *            上游节点列
+	 * @param toColumn
+	 *            下游节点列
+	 * @return
+	 */
+	public Traversal edge(String tableName, String fromColumn, String toColumn) {
+		edges.add(new String[] { tableName, fromColumn, toColumn });
+		return this;
+	}
+
+	public Traversal edge(Class<?> entityType, String fromColumn,
+			String toColumn) throws DbException {
+		return edge(EntitySchema.getTableName(entityType), fromColumn,
+				toColumn);
+	}
+
+	public Traversal from(Object... keys) {
+		Collections.addAll(startKeys, keys);
+		return this;
+	}
+
+	public Traversal from(Collection<?> keys) {
+		startKeys.addAll(keys);
+		return this;
+	}
+
+	/**
+	 * 逆着边的方向向上游追溯
+	 * 
+	 * @return
+	 */
+	public Traversal upstream() {
+		this.upstream = true;
+		return this;
+	}
+
+	public Traversal maxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+		return this;
+	}
+
+	/**
+	 * 最多返回的节点数
+	 * 
+	 * @param limit
+	 * @return
+	 */
+	public Traversal limit(int limit) {
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * 按深度由小到大逐行回调，每个节点回调一次
+	 * 
+	 * @param handler
+	 * @throws DbException
+	 */
+	public void forEach(NodeHandler handler) throws DbException {
+		check();
+		if (!db.isSqliteVersionAtLeast(3, 8, 3)) {
+			forEachByLevel(handler);
+			return;
+		}
+		// 上游取最小深度少一层的节点中的一个，起点没有上游
+		Cursor cursor = db.execQuery(getTraceSqlInfo(", visit(node,depth) AS"
+				+ " (SELECT node, min(depth) FROM trace GROUP BY node)"
+				+ " SELECT v.node, min(p.node), v.depth FROM visit v"
+				+ " LEFT JOIN edges e ON e.dst=v.node"
+				+ " LEFT JOIN visit p ON p.node=e.src AND p.depth=v.depth-1"
+				+ " GROUP BY v.node, v.depth ORDER BY v.depth"
+				+ getLimitSql()));
+		Map<String, String> paths = new HashMap<String, String>();
+		try {
+			while (cursor.moveToNext()) {
+				String key = cursor.getString(0);
+				String parent = cursor.getString(1);
+				String path = (parent == null ? SEPARATOR : paths.get(parent))
+						+ key + SEPARATOR;
+				paths.put(key, path);
+				if (!handler.onNode(new Node(key, parent, cursor.getInt(2),
+						path))) {
+					return;
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+	}
+
+	/**
+	 * @return 全部访问记录
+	 * @throws DbException
+	 */
+	public List<Node> findAll() throws DbException {
+		final List<Node> result = new ArrayList<Node>();
+		forEach(new NodeHandler() {
+
+			@Override
+			public boolean onNode(Node node) {
+				result.add(node);
+				return true;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * 查询访问到的节点对象，每个节点一个，按最小深度排序
+	 * 
+	 * @param entityType
+	 *            节点表
+	 * @param keyColumn
+	 *            与边的列对应的节点列
+	 * @return
+	 * @throws DbException
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> findNodes(Class<T> entityType, String keyColumn)
+			throws DbException {
+		check();
+		Selector selector = Selector.from(entityType);
+		String tableName = selector.getTableName();
+		if (!db.isSqliteVersionAtLeast(3, 8, 3)) {
+			return findNodesByLevel(selector, keyColumn);
+		}
+		String columns = selector.getColumnSql().replaceAll("(^|,)",
+				"$1n.");
+		Cursor cursor = db.execQuery(getTraceSqlInfo(" SELECT " + columns
+				+ " FROM " + tableName + " n JOIN (SELECT node, min(depth)"
+				+ " AS depth FROM trace GROUP BY node) v ON n." + keyColumn
+				+ "=v.node ORDER BY v.depth" + getLimitSql()));
+		List<T> result = new ArrayList<T>();
+		try {
+			while (cursor.moveToNext()) {
+				result.add((T) CursorUtils.getEntity(cursor, entityType));
+			}
+		} finally {
+			IOUtils.closeQuietly(cursor);
+		}
+		return result;
+	}
+
+	private String getLimitSql() {
+		return limit > 0 ? " LIMIT " + limit : "";
+	}
+
+	private void check() throws DbException {
+		if (edges.isEmpty()) {
+			throw new DbException("没有定义边");
+		}
+		if (startKeys.isEmpty()) {
+			throw new DbException("没有起点");
+		}
+	}
+
+	/**
+	 * WITH RECURSIVE edges(src,dst), trace(node,depth)
+	 * 
+	 * trace中同一节点可能有多个深度，select需要按node取min(depth)
+	 * 
+	 * @param select
+	 *            接在trace之后，可以以", 名称 AS (...)"开头继续定义CTE
+	 */
+	SqlInfo getTraceSqlInfo(String select) {
+		SqlInfo sqlInfo = new SqlInfo();
+		StringBuilder sql = new StringBuilder(
+				"WITH RECURSIVE edges(src,dst) AS (");
+		for (int i = 0; i < edges.size(); i++) {
+			String[] edge = edges.get(i);
+			String src = upstream ? edge[2] : edge[1];
+			String dst = upstream ? edge[1] : edge[2];
+			sql.append(i > 0 ? " UNION " : "").append("SELECT DISTINCT ")
+					.append(src).append(",").append(dst).append(" FROM ")
+					.append(edge[0]).append(" WHERE ").append(src)
+					.append(" NOT NULL AND ").append(dst).append(" NOT NULL");
+		}
+		sql.append("), trace(node,depth) AS (");
+		for (int i = 0; i < startKeys.size(); i++) {
+			sql.append(i > 0 ? " UNION " : "").append("SELECT ?,0");
+			sqlInfo.addBindArg(TypeConverters.toDbValue(startKeys.get(i)));
+		}
+		// UNION只把没出现过的行放入队列，同一(节点,深度)只展开一次
+		sql.append(" UNION SELECT e.dst,t.depth+1")
+				.append(" FROM trace t JOIN edges e ON e.src=t.node")
+				.append(" WHERE t.depth<").append(maxDepth);
+		sql.append(")").append(select);
+		sqlInfo.setSql(sql.toString());
+		return sqlInfo;
+	}
+
+	/**
+	 * 不支持递归查询时逐层展开，每层每组边一次IN查询，只展开第一次访问到的节点
+	 */
+	private void forEachByLevel(NodeHandler handler) throws DbException {
+		Set<String> visited = new HashSet<String>();
+		List<Node> level = new ArrayList<Node>();
+		for (Object key : startKeys) {
+			String k = String.valueOf(TypeConverters.toDbValue(key));
+			if (visited.add(k)) {
+				level.add(new Node(k, null, 0, SEPARATOR + k + SEPARATOR));
+			}
+		}
+		int count = 0;
+		while (!level.isEmpty()) {
+			for (Node node : level) {
+				if (!handler.onNode(node) || (limit > 0 && ++count >= limit)) {
+					return;
+				}
+			}
+			if (level.get(0).getDepth() >= maxDepth) {
+				return;
+			}
+			level = expand(level, visited);
+		}
+	}
+
+	private List<Node> expand(List<Node> level, Set<String> visited)
+			throws DbException {
+		Map<String, Node> byKey = new LinkedHashMap<String, Node>();
+		for (Node node : level) {
+			byKey.put(node.getKey(), node);
+		}
+		List<String> keys = new ArrayList<String>(byKey.keySet());
+		List<Node> next = new ArrayList<Node>();
+		for (String[] edge : edges) {
+			String src = upstream ? edge[2] : edge[1];
+			String dst = upstream ? edge[1] : edge[2];
+			for (int from = 0; from < keys.size(); from += RelationLoader.CHUNK_SIZE) {
+				List<String> chunk = keys.subList(from,
+						Math.min(keys.size(), from + RelationLoader.CHUNK_SIZE));
+				SqlInfo sqlInfo = new SqlInfo();
+				StringBuilder sql = new StringBuilder("SELECT DISTINCT ").append(src)
+						.append(",").append(dst).append(" FROM ")
+						.append(edge[0]).append(" WHERE ").append(dst)
+						.append(" NOT NULL AND ").append(src).append(" IN (");
+				for (int i = 0; i < chunk.size(); i++) {
+					sql.append(i > 0 ? ",?" : "?");
+					sqlInfo.addBindArg(chunk.get(i));
+				}
+				sqlInfo.setSql(sql.append(")").toString());
+				Cursor cursor = db.execQuery(sqlInfo);
+				try {
+					while (cursor.moveToNext()) {
+						String key = cursor.getString(1);
+						if (visited.add(key)) {
+							Node parent = byKey.get(cursor.getString(0));
+							next.add(new Node(key, parent.getKey(), parent
+									.getDepth() + 1, parent.getPath() + key
+									+ SEPARATOR));
+						}
+					}
+				} finally {
+					IOUtils.closeQuietly(cursor);
+				}
+			}
+		}
+		return next;
+	}
+
+	private <T> List<T> findNodesByLevel(Selector selector, String keyColumn)
+			throws DbException {
+		final List<String> keys = new ArrayList<String>();
+		// 广度优先，每个节点一次，顺序即为最小深度的顺序
+		forEach(new NodeHandler() {
+
+			@Override
+			public boolean onNode(Node node) {
+				keys.add(node.getKey());
+				return true;
+			}
+		});
+		Map<String, T> byKey = new HashMap<String, T>();
+		for (int from = 0; from < keys.size(); from += RelationLoader.CHUNK_SIZE) {
+			List<String> chunk = keys.subList(from,
+					Math.min(keys.size(), from + RelationLoader.CHUNK_SIZE));
+			List<T> list = db.findAll(Selector.from(selector.getEntityType())
+					.where(keyColumn, "in", chunk));
+			for (T entity : list) {
+				byKey.put(String.valueOf(TypeConverters.toDbValue(getValue(
+						entity, keyColumn))), entity);
+			}
+		}
+		List<T> result = new ArrayList<T>(byKey.size());
+		for (String key : keys) {
+			T entity = byKey.get(key);
+			if (entity != null) {
+				result.add(entity);
+			}
+		}
+		return result;
+	}
+
+	private static Object getValue(Object entity, String column)
+			throws DbException {
+		try {
+			Field field = entity.getClass().getDeclaredField(column);
+			field.setAccessible(true);
+			return field.get(entity);
+		} catch (Exception e) {
+			throw new DbException("字段[" + entity.getClass().getSimpleName()
+					+ "." + column + "]不存在");
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.ieds.gis.base.dao;
+
+/**
+ * Java类型与SQLite存储类型的转换，用于写入、绑定参数和建表时的列类型
+ * 
+ * 读取实体由xUtils的CursorUtils完成，不经过这里，自定义类型需要能从存储类型读回
+ * 
+ * @author lihx
+ * 
+ */
+public interface TypeConverter<T> {
+
+	/**
+	 * @param value
+	 *            不为null
+	 * @return Long、Double、String或byte[]
+	 */
+	public Object toDbValue(T value);
+
+	/**
+	 * @return INTEGER、REAL、TEXT或BLOB
+	 */
+	public String getDbType();
+}
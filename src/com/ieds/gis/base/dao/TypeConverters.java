@@ -0,0 +1,138 @@
+package com.ieds.gis.base.dao;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteProgram;
+
+/**
+ * 类型转换注册表，写入和查询条件都按SQLite原生类型绑定，而不是统一转成字符串；
+ * 读取实体仍由xUtils的CursorUtils完成，Date按毫秒数、布尔按0/1读回
+ * 
+ * 默认：整数、布尔(0/1)和Date(毫秒数)存为INTEGER，浮点数存为REAL，byte[]存为BLOB，其他存为TEXT
+ * 
+ * @author lihx
+ * 
+ */
+public class TypeConverters {
+
+	private static final Map<Class<?>, TypeConverter<?>> CONVERTERS = new HashMap<Class<?>, TypeConverter<?>>();
+
+	static {
+		register(Date.class, new TypeConverter<Date>() {
+
+			@Override
+			public Object toDbValue(Date value) {
+				return value.getTime();
+			}
+
+			@Override
+			public String getDbType() {
+				return "INTEGER";
+			}
+		});
+		TypeConverter<Boolean> bool = new TypeConverter<Boolean>() {
+
+			@Override
+			public Object toDbValue(Boolean value) {
+				return value ? 1L : 0L;
+			}
+
+			@Override
+			public String getDbType() {
+				return "INTEGER";
+			}
+		};
+		register(Boolean.class, bool);
+		register(boolean.class, bool);
+	}
+
+	private TypeConverters() {
+	}
+
+	public static synchronized <T> void register(Class<T> type,
+			TypeConverter<? super T> converter) {
+		CONVERTERS.put(type, converter);
+	}
+
+	public static synchronized TypeConverter<?> get(Class<?> type) {
+		TypeConverter<?> converter = CONVERTERS.get(type);
+		if (converter == null) {
+			for (Map.Entry<Class<?>, TypeConverter<?>> e : CONVERTERS
+					.entrySet()) {
+				if (e.getKey().isAssignableFrom(type)) {
+					return e.getValue();
+				}
+			}
+		}
+		return converter;
+	}
+
+	/**
+	 * @param value
+	 * @return Long、Double、String、byte[]或null
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static Object toDbValue(Object value) {
+		if (value == null || value instanceof String || value instanceof byte[]) {
+			return value;
+		}
+		if (value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof Double || value instanceof Float) {
+			return ((Number) value).doubleValue();
+		}
+		TypeConverter converter = get(value.getClass());
+		if (converter != null) {
+			return converter.toDbValue(value);
+		}
+		return value.toString();
+	}
+
+	public static Object[] toDbValues(Object[] values) {
+		if (values == null) {
+			return null;
+		}
+		Object[] result = new Object[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = toDbValue(values[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * @param type
+	 *            字段类型
+	 * @return 注册了转换器的类型返回转换器的存储类型，否则为null
+	 */
+	public static String getDbType(Class<?> type) {
+		TypeConverter<?> converter = get(type);
+		return converter == null ? null : converter.getDbType();
+	}
+
+	/**
+	 * 按原生类型绑定参数
+	 * 
+	 * @param program
+	 * @param index
+	 *            从1开始
+	 * @param value
+	 */
+	public static void bind(SQLiteProgram program, int index, Object value) {
+		Object dbValue = toDbValue(value);
+		if (dbValue == null) {
+			program.bindNull(index);
+		} else if (dbValue instanceof Long) {
+			program.bindLong(index, (Long) dbValue);
+		} else if (dbValue instanceof Double) {
+			program.bindDouble(index, (Double) dbValue);
+		} else if (dbValue instanceof byte[]) {
+			program.bindBlob(index, (byte[]) dbValue);
+		} else {
+			program.bindString(index, dbValue.toString());
+		}
+	}
+}
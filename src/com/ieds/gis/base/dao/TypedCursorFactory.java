@@ -0,0 +1,34 @@
+package com.ieds.gis.base.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteQuery;
+
+/**
+ * 按原生类型绑定查询参数，rawQuery只能按字符串绑定，数值比较和索引范围扫描会失效
+ * 
+ * @author lihx
+ * 
+ */
+public class TypedCursorFactory implements CursorFactory {
+
+	private final Object[] bindArgs;
+
+	public TypedCursorFactory(Object[] bindArgs) {
+		this.bindArgs = bindArgs;
+	}
+
+	@Override
+	public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery,
+			String editTable, SQLiteQuery query) {
+		if (bindArgs != null) {
+			for (int i = 0; i < bindArgs.length; i++) {
+				TypeConverters.bind(query, i + 1, bindArgs[i]);
+			}
+		}
+		return new SQLiteCursor(masterQuery, editTable, query);
+	}
+}
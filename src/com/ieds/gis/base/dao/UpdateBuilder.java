@@ -0,0 +1,147 @@
+package com.ieds.gis.base.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.lidroid.xutils.db.sqlite.SqlInfo;
+import com.lidroid.xutils.db.sqlite.WhereBuilder;
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 按条件批量修改部分列，不需要先查询对象，编译为一条绑定参数的UPDATE语句
+ * 
+ * <pre>
+ * int count = db.update(CHK_DIS_DEFECT.class).set(&quot;status&quot;, &quot;2&quot;)
+ * 		.set(&quot;is_report&quot;, &quot;1&quot;).where(WhereBuilder.b(&quot;task_id&quot;, &quot;=&quot;, taskId))
+ * 		.execute();
+ * </pre>
+ * 
+ * @author lihx
+ * 
+ */
+public class UpdateBuilder {
+
+	private final DbUtils db;
+	private final Class<?> entityType;
+	private final Set<String> columns;
+	private final List<String> assignments = new ArrayList<String>();
+	private final List<Object> bindArgs = new ArrayList<Object>();
+	private WhereBuilder whereBuilder;
+
+	UpdateBuilder(DbUtils db, Class<?> entityType) {
+		this.db = db;
+		this.entityType = entityType;
+		this.columns = EntitySchema.getColumns(entityType).keySet();
+	}
+
+	/**
+	 * 设置列的值，按原生类型绑定
+	 * 
+	 * @param column
+	 * @param value
+	 *            可以为null
+	 * @return
+	 * @throws DbException
+	 */
+	public UpdateBuilder set(String column, Object value) throws DbException {
+		checkColumn(column);
+		assignments.add(column + "=?");
+		bindArgs.add(TypeConverters.toDbValue(value));
+		return this;
+	}
+
+	/**
+	 * 设置列为表达式，如setExpr("counter", "counter + 1")
+	 * 
+	 * @param column
+	 * @param expression
+	 *            原样写入sql，不要拼接外部输入
+	 * @param args
+	 *            表达式中?对应的参数
+	 * @return
+	 * @throws DbException
+	 */
+	public UpdateBuilder setExpr(String column, String expression,
+			Object... args) throws DbException {
+		checkColumn(column);
+		assignments.add(column + "=" + expression);
+		for (Object arg : args) {
+			bindArgs.add(TypeConverters.toDbValue(arg));
+		}
+		return this;
+	}
+
+	public UpdateBuilder where(WhereBuilder whereBuilder) {
+		this.whereBuilder = whereBuilder;
+		return this;
+	}
+
+	public UpdateBuilder where(String columnName, String op, Object value) {
+		this.whereBuilder = WhereBuilder.b(columnName, op,
+				TypeConverters.toDbValue(value));
+		return this;
+	}
+
+	/**
+	 * 追加AND条件，之前没有条件时等同于where
+	 */
+	public UpdateBuilder and(String columnName, String op, Object value) {
+		if (whereBuilder == null) {
+			return where(columnName, op, value);
+		}
+		this.whereBuilder.append(columnName, op,
+				TypeConverters.toDbValue(value));
+		return this;
+	}
+
+	public SqlInfo getSqlInfo() throws DbException {
+		if (assignments.isEmpty()) {
+			throw new DbException("没有要修改的列");
+		}
+		StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE ").append(EntitySchema.getTableName(entityType))
+				.append(" SET ");
+		for (int i = 0; i < assignments.size(); i++) {
+			if (i > 0) {
+				sql.append(",");
+			}
+			sql.append(assignments.get(i));
+		}
+		if (whereBuilder == null) {
+			throw new DbException(DbUtils.NOT_WHERE + "：" + sql);
+		}
+		sql.append(" WHERE ").append(whereBuilder.toString());
+		SqlInfo sqlInfo = new SqlInfo();
+		sqlInfo.setSql(sql.toString());
+		for (Object arg : bindArgs) {
+			sqlInfo.addBindArg(arg);
+		}
+		return sqlInfo;
+	}
+
+	/**
+	 * @return 修改的行数
+	 * @throws DbException
+	 */
+	public int execute() throws DbException {
+		SqlInfo sqlInfo = getSqlInfo();
+		try {
+			db.beginTransaction();
+
+			int count = db.execUpdateDelete(sqlInfo);
+			db.notifyTableChanged(EntitySchema.getTableName(entityType), count);
+
+			db.setTransactionSuccessful();
+			return count;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	private void checkColumn(String column) throws DbException {
+		if (!columns.contains(column)) {
+			throw new DbException("对象[" + entityType + "]没有列" + column);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.ieds.gis.base.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.lidroid.xutils.db.sqlite.SqlInfoBuilder;
+import com.lidroid.xutils.db.table.KeyValue;
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.LogUtils;
+
+/**
+ * 按主键插入或更新，默认只写对象中不为null的列，未赋值的列保留原值；writeNulls为true时写所有列，null写为NULL
+ * 
+ * SQLite 3.24以上使用INSERT ... ON CONFLICT(主键) DO UPDATE，旧版本先UPDATE，没有更新到行时再INSERT。
+ * 与INSERT OR REPLACE不同，已有的行不会被删除重建，不触发删除触发器，索引只在列值变化时更新。
+ * 主键取自MyTable.getId()，支持复合主键
+ * 
+ * 同一个Upserter内相同列组合的语句只编译一次，用完需要close
+ * 
+ * @author lihx
+ * 
+ */
+public class Upserter {
+
+	private final SQLiteDatabase db;
+	private final boolean nativeUpsert;
+	private final boolean debug;
+	private final boolean writeNulls;
+	private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+
+	public Upserter(SQLiteDatabase db, boolean nativeUpsert, boolean debug) {
+		this(db, nativeUpsert, debug, false);
+	}
+
+	/**
+	 * @param db
+	 * @param nativeUpsert
+	 * @param debug
+	 * @param writeNulls
+	 *            为true时对象中为null的列也写入，已有行的值改为NULL
+	 */
+	public Upserter(SQLiteDatabase db, boolean nativeUpsert, boolean debug,
+			boolean writeNulls) {
+		this.db = db;
+		this.nativeUpsert = nativeUpsert;
+		this.debug = debug;
+		this.writeNulls = writeNulls;
+	}
+
+	/**
+	 * @param version
+	 *            sqlite_version()
+	 * @return 是否支持ON CONFLICT DO UPDATE
+	 */
+	public static boolean supportsNativeUpsert(String version) {
+		if (version == null) {
+			return false;
+		}
+		String[] parts = version.split("\\.");
+		try {
+			int major = Integer.parseInt(parts[0]);
+			int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+			return major > 3 || (major == 3 && minor >= 24);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	public void upsert(Object entity) throws DbException {
+		Class<?> entityType = entity.getClass();
+		String tableName = EntitySchema.getTableName(entityType);
+		List<String> ids = EntitySchema.getIdColumns(entityType);
+		if (ids.isEmpty()) {
+			throw new DbException("对象[" + entityType + "]没有主键，不能upsert");
+		}
+		List<KeyValue> kvList = SqlInfoBuilder.entityKeyAndValueList(entity);
+		List<KeyValue> keys = new ArrayList<KeyValue>(ids.size());
+		List<KeyValue> values = new ArrayList<KeyValue>(kvList.size());
+		for (KeyValue kv : kvList) {
+			if (ids.contains(kv.getKey())) {
+				keys.add(kv);
+			} else {
+				values.add(kv);
+			}
+		}
+		if (keys.size() != ids.size()) {
+			throw new DbException("对象[" + entityType + "]的id不能是null");
+		}
+		if (writeNulls) {
+			// entityKeyAndValueList不含null的列，按列名补上
+			kvList = new ArrayList<KeyValue>(kvList);
+			for (String column : EntitySchema.getColumns(entityType).keySet()) {
+				if (!ids.contains(column) && !containsKey(values, column)) {
+					KeyValue kv = new KeyValue(column, null);
+					values.add(kv);
+					kvList.add(kv);
+				}
+			}
+		}
+		if (nativeUpsert) {
+			nativeUpsert(tableName, keys, values);
+		} else if (values.isEmpty() || update(tableName, keys, values) == 0) {
+			insert(tableName, kvList, values.isEmpty());
+		}
+	}
+
+	private void nativeUpsert(String tableName, List<KeyValue> keys,
+			List<KeyValue> values) throws DbException {
+		StringBuilder sql = new StringBuilder();
+		List<KeyValue> all = new ArrayList<KeyValue>(keys);
+		all.addAll(values);
+		appendInsert(sql, "INSERT", tableName, all);
+		sql.append(" ON CONFLICT(");
+		appendColumns(sql, keys, "", ",");
+		sql.append(")");
+		if (values.isEmpty()) {
+			sql.append(" DO NOTHING");
+		} else {
+			sql.append(" DO UPDATE SET ");
+			for (int i = 0; i < values.size(); i++) {
+				if (i > 0) {
+					sql.append(",");
+				}
+				String column = values.get(i).getKey();
+				sql.append(column).append("=excluded.").append(column);
+			}
+		}
+		SQLiteStatement statement = bind(sql.toString(), all);
+		statement.executeInsert();
+	}
+
+	private int update(String tableName, List<KeyValue> keys,
+			List<KeyValue> values) throws DbException {
+		StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE ").append(tableName).append(" SET ");
+		appendColumns(sql, values, "=?", ",");
+		sql.append(" WHERE ");
+		appendColumns(sql, keys, "=?", " AND ");
+		List<KeyValue> args = new ArrayList<KeyValue>(values);
+		args.addAll(keys);
+		return bind(sql.toString(), args).executeUpdateDelete();
+	}
+
+	private void insert(String tableName, List<KeyValue> kvList,
+			boolean ignore) throws DbException {
+		StringBuilder sql = new StringBuilder();
+		appendInsert(sql, ignore ? "INSERT OR IGNORE" : "INSERT", tableName,
+				kvList);
+		bind(sql.toString(), kvList).executeInsert();
+	}
+
+	private static boolean containsKey(List<KeyValue> kvList, String key) {
+		for (KeyValue kv : kvList) {
+			if (kv.getKey().equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void appendInsert(StringBuilder sql, String verb,
+			String tableName, List<KeyValue> kvList) {
+		sql.append(verb).append(" INTO ").append(tableName).append(" (");
+		appendColumns(sql, kvList, "", ",");
+		sql.append(") VALUES (");
+		for (int i = 0; i < kvList.size(); i++) {
+			sql.append(i > 0 ? ",?" : "?");
+		}
+		sql.append(")");
+	}
+
+	private static void appendColumns(StringBuilder sql, List<KeyValue> kvList,
+			String suffix, String separator) {
+		for (int i = 0; i < kvList.size(); i++) {
+			if (i > 0) {
+				sql.append(separator);
+			}
+			sql.append(kvList.get(i).getKey()).append(suffix);
+		}
+	}
+
+	private SQLiteStatement bind(String sql, List<KeyValue> args)
+			throws DbException {
+		SQLiteStatement statement = statements.get(sql);
+		if (statement == null) {
+			if (debug) {
+				LogUtils.d(sql);
+			}
+			try {
+				statement = db.compileStatement(sql);
+			} catch (Exception e) {
+				throw new DbException("异常原因：" + e.getMessage()
+						+ "\n异常语句：sql=(" + sql + ")");
+			}
+			statements.put(sql, statement);
+		}
+		statement.clearBindings();
+		for (int i = 0; i < args.size(); i++) {
+			TypeConverters.bind(statement, i + 1, args.get(i).getValue());
+		}
+		return statement;
+	}
+
+	public void close() {
+		for (SQLiteStatement statement : statements.values()) {
+			statement.close();
+		}
+		statements.clear();
+	}
+}
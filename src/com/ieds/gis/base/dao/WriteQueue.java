@@ -0,0 +1,233 @@
+package com.ieds.gis.base.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.lidroid.xutils.exception.DbException;
+import com.lidroid.xutils.util.LogUtils;
+
+/**
+ * 单线程写队列，任意线程提交的写操作由写线程串行执行
+ * 
+ * 在合并窗口内到达的写操作合并为一个事务提交(group commit)，只需一次fsync；
+ * 单个操作失败时通过它的Future报告，同批次的其他操作回滚后各自在单独的事务中重新执行，不受影响。
+ * 因此失败操作之前的写操作会执行两次(第一次已回滚)，写操作中数据库以外的副作用(如发送通知、修改内存状态)
+ * 需要能重复执行，或者放到Future完成之后
+ * 
+ * @author lihx
+ * 
+ */
+public class WriteQueue {
+
+	private static final long DEFAULT_WINDOW_MS = 5;
+	private static final int DEFAULT_MAX_BATCH = 200;
+
+	private final DbUtils db;
+	private final LinkedBlockingQueue<WriteFuture<?>> queue = new LinkedBlockingQueue<WriteFuture<?>>();
+	private final long windowMs;
+	private final int maxBatch;
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	public WriteQueue(DbUtils db) {
+		this(db, DEFAULT_WINDOW_MS, DEFAULT_MAX_BATCH);
+	}
+
+	public WriteQueue(DbUtils db, long windowMs, int maxBatch) {
+		this.db = db;
+		this.windowMs = windowMs;
+		this.maxBatch = maxBatch;
+		this.writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "DbWriter");
+		this.writer.start();
+	}
+
+	public <T> WriteFuture<T> enqueue(DbWrite<T> write) {
+		WriteFuture<T> future = new WriteFuture<T>(write);
+		if (!running) {
+			future.fail(new DbException("写队列已关闭"));
+		} else {
+			queue.add(future);
+			// 与shutdown并发时，写线程可能已经取完队列退出
+			if (!running && queue.remove(future)) {
+				future.fail(new DbException("写队列已关闭"));
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * 当前线程是否是写线程，写线程内的DbUtils事务由写队列统一管理
+	 */
+	public boolean isWriterThread() {
+		return Thread.currentThread() == writer;
+	}
+
+	/**
+	 * 停止接收新的写操作，已提交的写操作执行完后写线程退出
+	 */
+	public void shutdown() {
+		running = false;
+		writer.interrupt();
+	}
+
+	private void loop() {
+		List<WriteFuture<?>> batch = new ArrayList<WriteFuture<?>>(maxBatch);
+		while (running || !queue.isEmpty()) {
+			try {
+				WriteFuture<?> first = running ? queue.take() : queue.poll();
+				if (first == null) {
+					break;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(windowMs);
+				while (batch.size() < maxBatch) {
+					long wait = deadline - System.nanoTime();
+					WriteFuture<?> next = wait > 0 ? queue.poll(wait,
+							TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// shutdown()唤醒，继续处理剩余写操作
+			}
+			if (!batch.isEmpty()) {
+				commit(batch);
+				batch.clear();
+			}
+		}
+		// 退出后才加入队列的写操作不会再执行
+		WriteFuture<?> left;
+		while ((left = queue.poll()) != null) {
+			left.fail(new DbException("写队列已关闭"));
+		}
+	}
+
+	/**
+	 * 整批在一个事务中执行；某个操作失败时回滚整个事务，报告该操作失败，其余操作各自在单独的事务中重新执行，
+	 * 一批最多执行两遍，不会因为多个失败反复重放整批。表修改通知只在事务提交后发出
+	 * 
+	 * 不用SAVEPOINT：Android的SQLiteSession把"ROLLBACK TO"当作结束事务，
+	 * 嵌套的beginTransaction在内层未成功时也会让外层事务回滚
+	 */
+	private void commit(List<WriteFuture<?>> batch) {
+		Attempt attempt = execute(batch);
+		if (attempt == null) {
+			return;
+		}
+		if (attempt.failed == null) {
+			for (WriteFuture<?> future : batch) {
+				future.complete();
+			}
+			return;
+		}
+		attempt.failed.fail(attempt.failure);
+		for (WriteFuture<?> future : batch) {
+			if (future == attempt.failed) {
+				continue;
+			}
+			List<WriteFuture<?>> single = new ArrayList<WriteFuture<?>>(1);
+			single.add(future);
+			Attempt retry = execute(single);
+			if (retry == null) {
+				continue;
+			}
+			if (retry.failed == null) {
+				future.complete();
+			} else {
+				future.fail(retry.failure);
+			}
+		}
+	}
+
+	/**
+	 * 在一个事务中依次执行，遇到失败的操作时停止并回滚
+	 * 
+	 * @return 执行结果；事务本身失败时已让全部操作失败，返回null
+	 */
+	private Attempt execute(List<WriteFuture<?>> futures) {
+		Attempt attempt = new Attempt();
+		try {
+			db.beginTransactionUnchecked();
+			try {
+				for (WriteFuture<?> future : futures) {
+					if (future.isCancelled()) {
+						continue;
+					}
+					try {
+						future.execute(db);
+					} catch (Exception e) {
+						attempt.failed = future;
+						attempt.failure = e;
+						break;
+					}
+				}
+				if (attempt.failed == null) {
+					db.setTransactionSuccessfulUnchecked();
+				}
+			} finally {
+				db.endTransactionUnchecked();
+			}
+		} catch (Exception e) {
+			LogUtils.e("写队列提交失败", e);
+			for (WriteFuture<?> future : futures) {
+				future.fail(e);
+			}
+			return null;
+		}
+		return attempt;
+	}
+
+	private static class Attempt {
+		WriteFuture<?> failed;
+		Exception failure;
+	}
+
+	/**
+	 * 写操作的结果，事务提交成功后才会完成
+	 */
+	public static class WriteFuture<T> extends FutureTask<T> {
+		private final DbWrite<T> write;
+		private T result;
+
+		WriteFuture(DbWrite<T> write) {
+			super(new Callable<T>() {
+
+				@Override
+				public T call() throws Exception {
+					throw new IllegalStateException();
+				}
+			});
+			this.write = write;
+		}
+
+		@Override
+		public void run() {
+			// 由写线程调用execute执行
+		}
+
+		void execute(DbUtils db) throws DbException {
+			result = write.write(db);
+		}
+
+		void complete() {
+			set(result);
+		}
+
+		void fail(Throwable t) {
+			setException(QueryTask.toDbException(t));
+		}
+	}
+}
@@ -4,13 +4,25 @@ import java.io.File;
 
 import android.database.sqlite.SQLiteDatabase;
 
+import com.ieds.gis.base.BuildConfig;
+import com.ieds.gis.base.dao.DbCallback;
 import com.ieds.gis.base.dao.DbUtils;
+import com.ieds.gis.base.dao.MigrationListener;
+import com.ieds.gis.base.dao.SchemaMigrator;
+import com.ieds.gis.base.dao.SummaryTable;
+import com.ieds.gis.base.test.po.CHK_DIS_DEFECT;
 import com.lidroid.xutils.exception.DbException;
 import com.lidroid.xutils.util.FileUtil;
 
 public class SqliteDAO extends DbUtils {
 
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 3;
+
+	/** 首页统计的汇总表 */
+	public static final String SUMMARY_DEFECT_LEVEL = "sum_defect_level";
+	public static final String SUMMARY_DEFECT_STATUS = "sum_defect_status";
+	public static final String SUMMARY_DEFECT_VOLTAGE = "sum_defect_voltage";
+	public static final String SUMMARY_DEFECT_LINE = "sum_defect_line";
 
 	public static final String CLOSE_ERROR = "关闭数据库连接失败！";
 	public static final String OPEN_ERROR = "连接数据库失败！";
@@ -34,22 +46,16 @@ public class SqliteDAO extends DbUtils {
 	}
 
 	@Override
-	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		// TODO Auto-generated method stub
-		for (int i = oldVersion; i < newVersion; i++) {
-			switch (i) {
-			case 2:
-				System.out.println(i);
-				break;
-			case 3:
-				System.out.println(i);
-				break;
-			default:
-				break;
-			}
-		}
-		System.out.println(oldVersion + " " + newVersion);
-
+	protected void onConfigureMigrations(SchemaMigrator migrator) {
+		migrator.addEntity(CHK_DIS_DEFECT.class);
+		migrator.addSummary(SummaryTable.count(SUMMARY_DEFECT_LEVEL,
+				CHK_DIS_DEFECT.class, "defect_level"));
+		migrator.addSummary(SummaryTable.count(SUMMARY_DEFECT_STATUS,
+				CHK_DIS_DEFECT.class, "status"));
+		migrator.addSummary(SummaryTable.count(SUMMARY_DEFECT_VOLTAGE,
+				CHK_DIS_DEFECT.class, "voltagelevel"));
+		migrator.addSummary(SummaryTable.count(SUMMARY_DEFECT_LINE,
+				CHK_DIS_DEFECT.class, "line_id", "line_name"));
 	}
 
 	private static SqliteDAO instance = null;
@@ -57,8 +63,7 @@ public class SqliteDAO extends DbUtils {
 	public static synchronized SqliteDAO getInstance() throws DbException {
 		try {
 			if (instance == null) {
-				instance = new SqliteDAO(new File(FileUtil.getSdcardPath()
-						+ "/demo.sqlite"), DATABASE_VERSION);
+				instance = new SqliteDAO(getDbFile(), DATABASE_VERSION);
 			}
 			return instance;
 		} catch (Exception e) {
@@ -67,9 +72,40 @@ public class SqliteDAO extends DbUtils {
 		}
 	}
 
+	/**
+	 * 启动时调用，在后台打开数据库、执行升级并预热缓存，打开完成前的数据库操作会等待
+	 * 
+	 * @param listener
+	 *            升级进度，可以为null
+	 * @param callback
+	 *            打开完成后在主线程回调，可以为null
+	 * @return
+	 */
+	public static synchronized SqliteDAO startAsync(MigrationListener listener,
+			DbCallback<DbUtils> callback) {
+		if (instance == null) {
+			instance = new SqliteDAO(getDbFile(), DATABASE_VERSION, true);
+		}
+		instance.openAsync(listener, callback);
+		return instance;
+	}
+
+	private static File getDbFile() {
+		return new File(FileUtil.getSdcardPath() + "/demo.sqlite");
+	}
+
+	public SqliteDAO(File dbFile, int mNewVersion, boolean lazy) {
+		super(dbFile, mNewVersion, lazy);
+		// 开发模式检查全表扫描
+		configQueryPlanCheck(BuildConfig.DEBUG);
+		configAutoMaintenance(1000, 256);
+	}
+
 	public SqliteDAO(File dbFile, int mNewVersion) {
 		super(dbFile, mNewVersion);
-		// TODO Auto-generated constructor stub
+		// 开发模式检查全表扫描
+		configQueryPlanCheck(BuildConfig.DEBUG);
+		configAutoMaintenance(1000, 256);
 	}
 
 }
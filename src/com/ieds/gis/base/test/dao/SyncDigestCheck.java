@@ -0,0 +1,63 @@
+package com.ieds.gis.base.test.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.ieds.gis.base.dao.SyncDigest;
+import com.ieds.gis.base.test.po.CHK_DIS_DEFECT;
+import com.lidroid.xutils.exception.DbException;
+
+/**
+ * 同步的自检：对端把列改为null后，本端同步后也应为null，两端哈希一致
+ * 
+ * @author lihx
+ * 
+ */
+public class SyncDigestCheck {
+
+	private SyncDigestCheck() {
+	}
+
+	/**
+	 * @param dao
+	 * @throws DbException
+	 *             同步后两端不一致时
+	 */
+	public static void checkNullField(SqliteDAO dao) throws DbException {
+		CHK_DIS_DEFECT local = new CHK_DIS_DEFECT();
+		local.setId(UUID.randomUUID().toString());
+		local.setDefect_code("A");
+		local.setStatus("1");
+		dao.save(local);
+		try {
+			SyncDigest<CHK_DIS_DEFECT> digest = dao
+					.syncDigest(CHK_DIS_DEFECT.class);
+			CHK_DIS_DEFECT remote = new CHK_DIS_DEFECT();
+			remote.setId(local.getId());
+			remote.setStatus("1");
+			// 对端已清空缺陷编码
+			remote.setDefect_code(null);
+
+			int bucket = SyncDigest.bucketOf(remote, digest.getDepth());
+			List<CHK_DIS_DEFECT> rows = new ArrayList<CHK_DIS_DEFECT>();
+			for (CHK_DIS_DEFECT row : digest.getRows(bucket)) {
+				rows.add(row.getId().equals(remote.getId()) ? remote : row);
+			}
+			digest.apply(bucket, rows);
+
+			CHK_DIS_DEFECT probe = new CHK_DIS_DEFECT();
+			probe.setId(local.getId());
+			CHK_DIS_DEFECT synced = dao.findFirstEnableNull(probe);
+			if (synced == null || synced.getDefect_code() != null) {
+				throw new DbException("同步后缺陷编码应为null：" + (synced == null
+						? null : synced.getDefect_code()));
+			}
+			if (SyncDigest.rowHash(synced) != SyncDigest.rowHash(remote)) {
+				throw new DbException("同步后行哈希与对端不一致");
+			}
+		} finally {
+			dao.deleteById(local);
+		}
+	}
+}
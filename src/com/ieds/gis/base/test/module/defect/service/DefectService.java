@@ -6,6 +6,8 @@ import java.util.List;
 import android.app.Activity;
 import android.content.Intent;
 
+import com.ieds.gis.base.dao.DbCallback;
+import com.ieds.gis.base.dao.QueryTask;
 import com.ieds.gis.base.dialog.MyToast;
 import com.ieds.gis.base.edit.EditFactoryActivity;
 import com.ieds.gis.base.edit.bo.EditBo;
@@ -17,10 +19,13 @@ import com.ieds.gis.base.test.service.IEditorService;
 import com.ieds.gis.base.widget.bo.AbsWidgetBo;
 import com.ieds.gis.base.widget.bo.FieldValue;
 import com.ieds.gis.base.widget.bo.WidgetSpinnerBo;
+import com.lidroid.xutils.exception.DbException;
 
 public class DefectService implements IEditorService {
 
 	private Activity act;
+	/** 正在执行的异步查询，页面销毁时取消 */
+	private QueryTask<CHK_DIS_DEFECT> browseTask;
 
 	public DefectService(Activity act) {
 		super();
@@ -60,16 +65,50 @@ public class DefectService implements IEditorService {
 		CHK_DIS_DEFECT c = new CHK_DIS_DEFECT();
 		c.setId(id);
 		try {
-			c = SqliteDAO.getInstance().findFirst(c);
+			cancel();
+			browseTask = SqliteDAO.getInstance().findFirstAsync(c,
+					new DbCallback<CHK_DIS_DEFECT>() {
 
-			EditBo eb = new EditBo(c, false);
-			Intent i = EditFactoryActivity.getEditIntent(act,
-					DefectActivity.class, eb);
-			EditFactoryActivity.toEditActivity(act, i);
+						@Override
+						public void onSuccess(CHK_DIS_DEFECT result) {
+							if (act == null || act.isFinishing()) {
+								return;
+							}
+							try {
+								EditBo eb = new EditBo(result, false);
+								Intent i = EditFactoryActivity.getEditIntent(
+										act, DefectActivity.class, eb);
+								EditFactoryActivity.toEditActivity(act, i);
+							} catch (Exception e) {
+								e.printStackTrace();
+								MyToast.showToast(e.getMessage());
+							}
+						}
+
+						@Override
+						public void onFailure(DbException e) {
+							MyToast.showToast(e.getMessage());
+						}
+					});
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 			MyToast.showToast(e.getMessage());
 		}
 	}
+
+	/**
+	 * 取消正在执行的异步查询，在Activity的onDestroy中调用，之后不再持有Activity
+	 */
+	public void destroy() {
+		cancel();
+		act = null;
+	}
+
+	private void cancel() {
+		if (browseTask != null) {
+			browseTask.cancel(true);
+			browseTask = null;
+		}
+	}
 }
@@ -12,6 +12,7 @@ import android.widget.Button;
 
 import com.ieds.gis.base.BaseActivity;
 import com.ieds.gis.base.R;
+import com.ieds.gis.base.test.dao.SqliteDAO;
 import com.ieds.gis.base.test.module.defect.service.DefectService;
 
 public class TestMainActivity extends BaseActivity {
@@ -23,6 +24,8 @@ public class TestMainActivity extends BaseActivity {
 	protected void onCreate(Bundle savedInstanceState) {
 		// TODO Auto-generated method stub
 		super.onCreate(savedInstanceState);
+		// 后台打开数据库，不阻塞界面
+		SqliteDAO.startAsync(null, null);
 		final String id = UUID.randomUUID().toString();
 		this.setContentView(R.layout.test_layout);
 		b1 = (Button) this.findViewById(R.id.b1);
@@ -44,4 +47,11 @@ public class TestMainActivity extends BaseActivity {
 			}
 		});
 	}
+
+	@Override
+	protected void onDestroy() {
+		// 取消还没回调的查询，避免回调持有已销毁的Activity
+		ds.destroy();
+		super.onDestroy();
+	}
 }
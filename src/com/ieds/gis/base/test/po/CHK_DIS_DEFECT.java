@@ -1,15 +1,22 @@
 package com.ieds.gis.base.test.po;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Date;
 import javax.persistence.Transient;
 import javax.persistence.Id;
 import javax.persistence.Entity;
 import javax.persistence.Table;
 
+import com.ieds.gis.base.dao.EntityCodec;
+import com.ieds.gis.base.dao.FullText;
+import com.ieds.gis.base.dao.Index;
+
 @Entity
 @Table(name = "CHK_DIS_DEFECT")
-public class CHK_DIS_DEFECT implements Serializable {
+public class CHK_DIS_DEFECT implements Externalizable {
 	@Id
 	private String id;
 
@@ -52,6 +59,7 @@ public class CHK_DIS_DEFECT implements Serializable {
 		return task_id;
 	}
 
+	@Index
 	private String line_id;
 
 	public void setLine_id(String line_id) {
@@ -62,6 +70,7 @@ public class CHK_DIS_DEFECT implements Serializable {
 		return line_id;
 	}
 
+	@FullText
 	private String line_name;
 
 	public void setLine_name(String line_name) {
@@ -102,6 +111,7 @@ public class CHK_DIS_DEFECT implements Serializable {
 		return voltagelevel;
 	}
 
+	@Index
 	private String equip_id;
 
 	public void setEquip_id(String equip_id) {
@@ -112,6 +122,7 @@ public class CHK_DIS_DEFECT implements Serializable {
 		return equip_id;
 	}
 
+	@FullText
 	private String equip_name;
 
 	public void setEquip_name(String equip_name) {
@@ -182,6 +193,7 @@ public class CHK_DIS_DEFECT implements Serializable {
 		return defect_level;
 	}
 
+	@FullText
 	private String content;
 
 	public void setContent(String content) {
@@ -222,6 +234,7 @@ public class CHK_DIS_DEFECT implements Serializable {
 		return mobile_serial;
 	}
 
+	@Index
 	private String status;
 
 	public void setStatus(String status) {
@@ -272,6 +285,7 @@ public class CHK_DIS_DEFECT implements Serializable {
 		return report_time;
 	}
 
+	@FullText
 	private String report_content;
 
 	public void setReport_content(String report_content) {
@@ -396,4 +410,14 @@ public class CHK_DIS_DEFECT implements Serializable {
 	public CHK_DIS_DEFECT() {
 		super();
 	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		EntityCodec.get(CHK_DIS_DEFECT.class).write(this, out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		EntityCodec.get(CHK_DIS_DEFECT.class).read(this, in);
+	}
 }